@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.EntityDescriptorItemIdPopulationStage;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthorityPopulationStage;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import uk.org.ukfederation.mda.AggregateGenerator;
+import uk.org.ukfederation.mda.EntityDescriptorUKIdPopulationStage;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EntityDescriptorFlowConstraintPopulationStage;
+
+/**
+ * Benchmark state holding a synthetic aggregate of a parameterised size.
+ *
+ * <p>
+ * The aggregate is built once per trial by an {@link AggregateGenerator} with a
+ * fixed seed, so that every run measures the same input. Two versions are kept: one with no
+ * item metadata at all, and one on which the usual population stages
+ * (item ID, UK ID, registration authority and flow constraints) have been run.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class AggregateState {
+
+    /** Number of entities in the aggregate. */
+    @Param({"1000", "10000", "100000"})
+    public int entities;
+
+    /** Entities with no item metadata. */
+    private List<Item<Element>> rawItems;
+
+    /** Entities with populated item metadata. */
+    private List<Item<Element>> populatedItems;
+
+    /** members.xml document describing the owners of the entities. */
+    private Document members;
+
+    /**
+     * Build the aggregate.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(1);
+        generator.setEntityCount(entities);
+        generator.setForeignRate(0.2);
+        generator.setDuplicateDisplayNameRate(0.1);
+        generator.setForeignDuplicatesOnly(true);
+        generator.setDisableFlowRate(0.1);
+        generator.setEnableFlowRate(0.05);
+
+        rawItems = generator.generateItems();
+        populatedItems = copy(rawItems);
+        run(new EntityDescriptorItemIdPopulationStage(), populatedItems);
+        run(new EntityDescriptorUKIdPopulationStage(), populatedItems);
+        run(new RegistrationAuthorityPopulationStage(), populatedItems);
+        run(new EntityDescriptorFlowConstraintPopulationStage(), populatedItems);
+        members = generator.generateMembers();
+    }
+
+    /**
+     * Run a stage once over a collection.
+     *
+     * @param stage stage to run
+     * @param items items to run the stage over
+     * @throws Exception if something goes wrong
+     */
+    private static void run(@Nonnull final AbstractStage<Element> stage,
+            @Nonnull @NonnullElements final List<Item<Element>> items) throws Exception {
+        stage.setId("populate");
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+    }
+
+    /**
+     * Make deep copies of a list of items, including their item metadata.
+     *
+     * @param items items to copy
+     * @return list of copied items
+     */
+    @Nonnull @NonnullElements public static List<Item<Element>> copy(
+            @Nonnull @NonnullElements final List<Item<Element>> items) {
+        final List<Item<Element>> copies = new ArrayList<>(items.size());
+        for (final Item<Element> item : items) {
+            copies.add(item.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * Get the entities with no item metadata.
+     *
+     * @return the entities, which must not be modified
+     */
+    @Nonnull @NonnullElements public List<Item<Element>> getRawItems() {
+        return rawItems;
+    }
+
+    /**
+     * Get the entities with populated item metadata.
+     *
+     * @return the entities, which must not be modified
+     */
+    @Nonnull @NonnullElements public List<Item<Element>> getPopulatedItems() {
+        return populatedItems;
+    }
+
+    /**
+     * Get the members.xml document describing the owners of the entities.
+     *
+     * @return the members.xml document
+     */
+    @Nonnull public Document getMembers() {
+        return members;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.dom.ElementBase64WrappingStage;
+
+/** Benchmark for {@link ElementBase64WrappingStage}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ElementBase64WrappingBenchmark {
+
+    /** Stage under test. */
+    private ElementBase64WrappingStage stage;
+
+    /**
+     * Create and initialize the stage.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stage = new ElementBase64WrappingStage();
+        stage.setId("wrap");
+        stage.setElementName(new QName("http://www.w3.org/2000/09/xmldsig#", "X509Certificate"));
+        stage.initialize();
+    }
+
+    /** Destroy the stage. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stage.destroy();
+    }
+
+    /**
+     * Wrap every embedded certificate in the aggregate.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> wrap(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        stage.execute(items);
+        return items;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.EntityDescriptorFlowConstraintPopulationStage;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.FlowConstraintApplyingStage;
+
+/**
+ * Benchmarks for {@link EntityDescriptorFlowConstraintPopulationStage} and
+ * {@link FlowConstraintApplyingStage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FlowConstraintBenchmark {
+
+    /** Flow constraint population stage under test. */
+    private EntityDescriptorFlowConstraintPopulationStage populationStage;
+
+    /** Flow constraint applying stage under test. */
+    private FlowConstraintApplyingStage<Element> applyingStage;
+
+    /**
+     * Create and initialize the stages.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        populationStage = new EntityDescriptorFlowConstraintPopulationStage();
+        populationStage.setId("populate");
+        populationStage.initialize();
+
+        applyingStage = new FlowConstraintApplyingStage<>();
+        applyingStage.setId("apply");
+        applyingStage.setFlowName("export");
+        applyingStage.initialize();
+    }
+
+    /** Destroy the stages. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        populationStage.destroy();
+        applyingStage.destroy();
+    }
+
+    /**
+     * Extract flow constraints from the aggregate.
+     *
+     * @param fresh a copy of the aggregate without item metadata
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> populate(final FreshRawItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        populationStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Apply flow constraints to the aggregate.
+     *
+     * <p>
+     * The applying stage only removes items from the collection, so a shallow
+     * copy of the populated aggregate is sufficient.
+     * </p>
+     *
+     * @param aggregate the populated aggregate
+     * @return the remaining items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> apply(final AggregateState aggregate) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>(aggregate.getPopulatedItems());
+        applyingStage.execute(items);
+        return items;
+    }
+
+}
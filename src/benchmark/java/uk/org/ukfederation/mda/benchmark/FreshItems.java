@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Benchmark state providing a fresh copy of the populated aggregate for each invocation.
+ *
+ * <p>
+ * Used by benchmarks for stages which modify the DOM or add item metadata, so that
+ * each invocation sees the same input. The copy is made outside the measured region.
+ * </p>
+ */
+@State(Scope.Thread)
+public class FreshItems {
+
+    /** The copied items. */
+    private List<Item<Element>> items;
+
+    /**
+     * Copy the populated aggregate.
+     *
+     * @param aggregate the aggregate to copy
+     */
+    @Setup(Level.Invocation)
+    public void copy(@Nonnull final AggregateState aggregate) {
+        items = AggregateState.copy(aggregate.getPopulatedItems());
+    }
+
+    /**
+     * Get the copied items.
+     *
+     * @return the copied items
+     */
+    @Nonnull @NonnullElements public List<Item<Element>> getItems() {
+        return items;
+    }
+
+}
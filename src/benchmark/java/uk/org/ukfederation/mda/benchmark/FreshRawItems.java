@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Benchmark state providing a fresh copy of the aggregate, without item metadata,
+ * for each invocation.
+ */
+@State(Scope.Thread)
+public class FreshRawItems {
+
+    /** The copied items. */
+    private List<Item<Element>> items;
+
+    /**
+     * Copy the aggregate.
+     *
+     * @param aggregate the aggregate to copy
+     */
+    @Setup(Level.Invocation)
+    public void copy(@Nonnull final AggregateState aggregate) {
+        items = AggregateState.copy(aggregate.getRawItems());
+    }
+
+    /**
+     * Get the copied items.
+     *
+     * @return the copied items
+     */
+    @Nonnull @NonnullElements public List<Item<Element>> getItems() {
+        return items;
+    }
+
+}
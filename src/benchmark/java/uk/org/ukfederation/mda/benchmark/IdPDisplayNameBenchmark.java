@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.IdPDisplayNameDuplicateAvoidingStage;
+import uk.org.ukfederation.mda.IdPDisplayNameDuplicateDetectingStage;
+import uk.org.ukfederation.mda.UKItemIdentificationStrategy;
+
+/**
+ * Benchmarks for {@link IdPDisplayNameDuplicateDetectingStage} and
+ * {@link IdPDisplayNameDuplicateAvoidingStage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IdPDisplayNameBenchmark {
+
+    /** Duplicate detecting stage under test. */
+    private IdPDisplayNameDuplicateDetectingStage detectingStage;
+
+    /** Duplicate detecting stage under test, in parallel mode. */
+    private IdPDisplayNameDuplicateDetectingStage parallelDetectingStage;
+
+    /** Duplicate avoiding stage under test. */
+    private IdPDisplayNameDuplicateAvoidingStage avoidingStage;
+
+    /** Duplicate avoiding stage under test, in parallel mode. */
+    private IdPDisplayNameDuplicateAvoidingStage parallelAvoidingStage;
+
+    /**
+     * Create and initialize the stages.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        detectingStage = new IdPDisplayNameDuplicateDetectingStage();
+        detectingStage.setId("detect");
+        detectingStage.setIdentificationStrategy(new UKItemIdentificationStrategy<>());
+        detectingStage.initialize();
+
+        parallelDetectingStage = new IdPDisplayNameDuplicateDetectingStage();
+        parallelDetectingStage.setId("detectParallel");
+        parallelDetectingStage.setIdentificationStrategy(new UKItemIdentificationStrategy<>());
+        parallelDetectingStage.setExecutorService(ForkJoinPool.commonPool());
+        parallelDetectingStage.initialize();
+
+        avoidingStage = new IdPDisplayNameDuplicateAvoidingStage();
+        avoidingStage.setId("avoid");
+        avoidingStage.setRegistrationAuthorityDisplayNames(Map.of(
+                "https://www.wayf.dk", "DK",
+                "http://www.swamid.se/", "SE",
+                "https://incommon.org", "US"));
+        avoidingStage.initialize();
+
+        parallelAvoidingStage = new IdPDisplayNameDuplicateAvoidingStage();
+        parallelAvoidingStage.setId("avoidParallel");
+        parallelAvoidingStage.setRegistrationAuthorityDisplayNames(
+                avoidingStage.getRegistrationAuthorityDisplayNames());
+        parallelAvoidingStage.setExecutorService(ForkJoinPool.commonPool());
+        parallelAvoidingStage.initialize();
+    }
+
+    /** Destroy the stages. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        detectingStage.destroy();
+        parallelDetectingStage.destroy();
+        avoidingStage.destroy();
+        parallelAvoidingStage.destroy();
+    }
+
+    /**
+     * Detect duplicate display names across the aggregate.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> detect(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        detectingStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Detect duplicate display names across the aggregate, extracting names in parallel.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> detectParallel(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        parallelDetectingStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Deconflict foreign display names across the aggregate.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> avoid(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        avoidingStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Deconflict foreign display names across the aggregate, checking foreign entities in parallel.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> avoidParallel(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        parallelAvoidingStage.execute(items);
+        return items;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.dom.saml.EntityOwnerCheckingStage;
+import uk.org.ukfederation.mda.dom.saml.ScopeInjectionStage;
+import uk.org.ukfederation.members.Members;
+
+/**
+ * Benchmarks for the stages driven by members.xml: {@link EntityOwnerCheckingStage}
+ * and {@link ScopeInjectionStage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MembersStagesBenchmark {
+
+    /** Owner checking stage under test. */
+    private EntityOwnerCheckingStage ownerCheckingStage;
+
+    /** Owner checking stage under test, in parallel mode. */
+    private EntityOwnerCheckingStage parallelOwnerCheckingStage;
+
+    /** Scope injection stage under test. */
+    private ScopeInjectionStage scopeInjectionStage;
+
+    /**
+     * Create and initialize the stages.
+     *
+     * @param aggregate the aggregate, providing the members.xml document
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp(final AggregateState aggregate) throws Exception {
+        final Members members = new Members(aggregate.getMembers());
+
+        ownerCheckingStage = new EntityOwnerCheckingStage();
+        ownerCheckingStage.setId("owner");
+        ownerCheckingStage.setMembers(members);
+        ownerCheckingStage.initialize();
+
+        parallelOwnerCheckingStage = new EntityOwnerCheckingStage();
+        parallelOwnerCheckingStage.setId("ownerParallel");
+        parallelOwnerCheckingStage.setMembers(members);
+        parallelOwnerCheckingStage.setExecutorService(ForkJoinPool.commonPool());
+        parallelOwnerCheckingStage.initialize();
+
+        scopeInjectionStage = new ScopeInjectionStage();
+        scopeInjectionStage.setId("scopes");
+        scopeInjectionStage.setMembers(members);
+        scopeInjectionStage.initialize();
+    }
+
+    /** Destroy the stages. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ownerCheckingStage.destroy();
+        parallelOwnerCheckingStage.destroy();
+        scopeInjectionStage.destroy();
+    }
+
+    /**
+     * Check the owner of every entity in the aggregate.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> checkOwners(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        ownerCheckingStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Check the owner of every entity in the aggregate, in parallel.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> checkOwnersParallel(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        parallelOwnerCheckingStage.execute(items);
+        return items;
+    }
+
+    /**
+     * Inject pushed scopes into the aggregate.
+     *
+     * @param fresh a copy of the populated aggregate
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> injectScopes(final FreshItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        scopeInjectionStage.execute(items);
+        return items;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.UKEntityMergingOrderingStrategy;
+import uk.org.ukfederation.mda.UKEntityOrderingStrategy;
+
+/**
+ * Benchmark for {@link UKEntityOrderingStrategy}.
+ *
+ * <p>
+ * The strategy does not modify its input, so a single shuffled copy of the
+ * aggregate is used for all invocations.
+ * </p>
+ *
+ * <p>
+ * The merging strategy is measured on the same items split into three
+ * ordered sub-aggregates and concatenated.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UKEntityOrderingBenchmark {
+
+    /** Strategy under test. */
+    private final UKEntityOrderingStrategy strategy = new UKEntityOrderingStrategy();
+
+    /** Merging strategy under test. */
+    private final UKEntityMergingOrderingStrategy mergingStrategy = new UKEntityMergingOrderingStrategy();
+
+    /** Items in a random order. */
+    private List<Item<Element>> shuffled;
+
+    /** Items as a concatenation of ordered sub-aggregates. */
+    private List<Item<Element>> concatenated;
+
+    /**
+     * Shuffle the aggregate.
+     *
+     * @param aggregate the aggregate to shuffle
+     */
+    @Setup(Level.Trial)
+    public void setUp(final AggregateState aggregate) {
+        shuffled = new ArrayList<>(aggregate.getPopulatedItems());
+        Collections.shuffle(shuffled, new Random(1));
+
+        concatenated = new ArrayList<>(shuffled.size());
+        final int third = shuffled.size() / 3;
+        concatenated.addAll(strategy.order(shuffled.subList(0, third)));
+        concatenated.addAll(strategy.order(shuffled.subList(third, 2 * third)));
+        concatenated.addAll(strategy.order(shuffled.subList(2 * third, shuffled.size())));
+    }
+
+    /**
+     * Order the shuffled aggregate.
+     *
+     * @return the ordered items
+     */
+    @Benchmark
+    public List<Item<Element>> order() {
+        return strategy.order(shuffled);
+    }
+
+    /**
+     * Order the concatenated sub-aggregates by merging.
+     *
+     * @return the ordered items
+     */
+    @Benchmark
+    public List<Item<Element>> merge() {
+        return mergingStrategy.order(concatenated);
+    }
+
+}
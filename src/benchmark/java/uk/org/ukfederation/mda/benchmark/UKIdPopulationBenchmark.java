@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.EntityDescriptorUKIdPopulationStage;
+
+/** Benchmark for {@link EntityDescriptorUKIdPopulationStage}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UKIdPopulationBenchmark {
+
+    /** Stage under test. */
+    private EntityDescriptorUKIdPopulationStage stage;
+
+    /**
+     * Create and initialize the stage.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("ukid");
+        stage.initialize();
+    }
+
+    /** Destroy the stage. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stage.destroy();
+    }
+
+    /**
+     * Populate {@link uk.org.ukfederation.mda.UKId}s across the aggregate.
+     *
+     * @param fresh a copy of the aggregate without item metadata
+     * @return the processed items
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<Item<Element>> populate(final FreshRawItems fresh) throws Exception {
+        final List<Item<Element>> items = fresh.getItems();
+        stage.execute(items);
+        return items;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import uk.org.ukfederation.mda.validate.string.EmailAddressStringValidator;
+import uk.org.ukfederation.mda.validate.x509.X509ConsistentNameValidator;
+import uk.org.ukfederation.mda.validate.x509.X509DSADetector;
+
+/**
+ * Benchmarks for the individual validators: {@link X509ConsistentNameValidator},
+ * {@link X509DSADetector} and {@link EmailAddressStringValidator}.
+ *
+ * <p>
+ * The values validated are the certificates and contact e-mail addresses of the entities
+ * in the {@link AggregateState} aggregate, extracted once per trial, so results are per
+ * aggregate and scale with its size. Each entity's values are validated against a fresh
+ * item, as a validating stage would.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValidatorsBenchmark {
+
+    /** XML Digital Signature namespace, in which <code>X509Certificate</code> elements appear. */
+    private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    /** Consistent name validator under test. */
+    private X509ConsistentNameValidator consistentNameValidator;
+
+    /** DSA detector under test. */
+    private X509DSADetector dsaDetector;
+
+    /** E-mail address validator under test. */
+    private EmailAddressStringValidator emailValidator;
+
+    /** Certificates of each entity in the aggregate. */
+    private List<List<X509Certificate>> certificates;
+
+    /** Contact e-mail addresses of each entity in the aggregate. */
+    private List<List<String>> emailAddresses;
+
+    /**
+     * Create and initialize the validators, and extract the values to validate from the aggregate.
+     *
+     * @param aggregate the aggregate
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUp(final AggregateState aggregate) throws Exception {
+        consistentNameValidator = new X509ConsistentNameValidator();
+        consistentNameValidator.setId("consistent");
+        consistentNameValidator.initialize();
+
+        dsaDetector = new X509DSADetector();
+        dsaDetector.setId("dsa");
+        dsaDetector.initialize();
+
+        emailValidator = new EmailAddressStringValidator();
+        emailValidator.setId("email");
+        emailValidator.initialize();
+
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        certificates = new ArrayList<>();
+        emailAddresses = new ArrayList<>();
+        for (final Item<Element> item : aggregate.getRawItems()) {
+            final Element entity = item.unwrap();
+
+            final List<X509Certificate> entityCertificates = new ArrayList<>();
+            final NodeList certElements = entity.getElementsByTagNameNS(DS_NS, "X509Certificate");
+            for (int i = 0; i < certElements.getLength(); i++) {
+                final byte[] der = Base64.getMimeDecoder().decode(certElements.item(i).getTextContent());
+                entityCertificates.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+            }
+            certificates.add(entityCertificates);
+
+            final List<String> entityAddresses = new ArrayList<>();
+            final NodeList emailElements = entity.getElementsByTagNameNS(SAMLMetadataSupport.MD_NS, "EmailAddress");
+            for (int i = 0; i < emailElements.getLength(); i++) {
+                entityAddresses.add(emailElements.item(i).getTextContent());
+            }
+            emailAddresses.add(entityAddresses);
+        }
+    }
+
+    /** Destroy the validators. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        consistentNameValidator.destroy();
+        dsaDetector.destroy();
+        emailValidator.destroy();
+    }
+
+    /**
+     * Check name consistency for each of the aggregate's certificates.
+     *
+     * @return the items holding any resulting status metadata
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<MockItem> consistentName() throws Exception {
+        final List<MockItem> items = new ArrayList<>(certificates.size());
+        for (final List<X509Certificate> entityCertificates : certificates) {
+            final MockItem item = new MockItem("certificates");
+            for (final X509Certificate certificate : entityCertificates) {
+                consistentNameValidator.validate(certificate, item, "bench");
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Check each of the aggregate's certificates for a DSA public key.
+     *
+     * @return the items holding any resulting status metadata
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<MockItem> dsa() throws Exception {
+        final List<MockItem> items = new ArrayList<>(certificates.size());
+        for (final List<X509Certificate> entityCertificates : certificates) {
+            final MockItem item = new MockItem("certificates");
+            for (final X509Certificate certificate : entityCertificates) {
+                dsaDetector.validate(certificate, item, "bench");
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Validate each of the aggregate's contact e-mail addresses.
+     *
+     * @return the items holding any resulting status metadata
+     * @throws Exception if something goes wrong
+     */
+    @Benchmark
+    public List<MockItem> email() throws Exception {
+        final List<MockItem> items = new ArrayList<>(emailAddresses.size());
+        for (final List<String> entityAddresses : emailAddresses) {
+            final MockItem item = new MockItem("addresses");
+            for (final String address : entityAddresses) {
+                emailValidator.validate(address, item, "bench");
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A machine-readable report of the display name clashes found, and the discovery names
+ * rewritten, by {@link IdPDisplayNameDuplicateDetectingStage} and
+ * {@link IdPDisplayNameDuplicateAvoidingStage}.
+ *
+ * <p>
+ * Records are written as the stage runs, rather than being collected in memory. Each
+ * record has the following fields:
+ * </p>
+ *
+ * <dl>
+ *   <dt>action</dt>
+ *   <dd>
+ *      <code>duplicate</code> for a display name also used by another entity,
+ *      <code>similar</code> for a display name similar to one used by another entity, or
+ *      <code>renamed</code> for a discovery name which has been rewritten.
+ *   </dd>
+ *   <dt>name</dt>
+ *   <dd>The entity's display name.</dd>
+ *   <dt>entity</dt>
+ *   <dd>The identifier of the entity.</dd>
+ *   <dt>otherName</dt>
+ *   <dd>The display name used by the other entity.</dd>
+ *   <dt>otherEntity</dt>
+ *   <dd>The identifier of the other entity.</dd>
+ *   <dt>detail</dt>
+ *   <dd>
+ *      The new name for <code>renamed</code> records, the similarity score for
+ *      <code>similar</code> records, and otherwise empty.
+ *   </dd>
+ * </dl>
+ *
+ * <p>
+ * When a {@link File} is used, it is replaced at the start of each execution of the stage
+ * and closed at the end, so it holds the records from the most recent execution. When a
+ * {@link Writer} is used, records from successive executions are appended to it, and it is
+ * flushed at the end of each execution but never closed. In either case, a report should
+ * be used by only one stage. Records from a stage running in parallel are written in no
+ * particular order.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>file</dt>
+ *   <dd>
+ *      The {@link File} to which the report is written, as UTF-8.
+ *      Exactly one of <code>file</code> and <code>writer</code> is required.
+ *   </dd>
+ *
+ *   <dt>writer</dt>
+ *   <dd>
+ *      The {@link Writer} to which the report is written.
+ *   </dd>
+ *
+ *   <dt>format</dt>
+ *   <dd>
+ *      The {@link Format} of the report. By default, {@link Format#JSON_LINES}.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class DisplayNameClashReport extends AbstractInitializableComponent {
+
+    /** Formats in which the report can be written. */
+    public enum Format {
+
+        /** One JSON object per line, with a member for each field. */
+        JSON_LINES,
+
+        /** Comma-separated values as described by RFC 4180, with a header line. */
+        CSV
+    }
+
+    /** Names of the fields in each record. */
+    private static final String[] FIELDS = {"action", "name", "entity", "otherName", "otherEntity", "detail"};
+
+    /** The file to which the report is written. */
+    @Nullable @GuardedBy("this")
+    private File file;
+
+    /** The writer to which the report is written. */
+    @Nullable @GuardedBy("this")
+    private Writer writer;
+
+    /** The format of the report. */
+    @Nonnull @GuardedBy("this")
+    private Format format = Format.JSON_LINES;
+
+    /** The writer for the current execution, or <code>null</code> if none is in progress. */
+    @Nullable @GuardedBy("this")
+    private Writer out;
+
+    /** Whether a CSV header has been written to {@link #writer}. */
+    @GuardedBy("this")
+    private boolean headerWritten;
+
+    /** The first exception encountered while writing records in the current execution. */
+    @Nullable @GuardedBy("this")
+    private IOException failure;
+
+    /**
+     * Gets the file to which the report is written.
+     *
+     * @return the file, or <code>null</code>
+     */
+    @Nullable public final synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the file to which the report is written.
+     *
+     * @param newFile the file
+     */
+    public final synchronized void setFile(@Nullable final File newFile) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = newFile;
+    }
+
+    /**
+     * Gets the writer to which the report is written.
+     *
+     * @return the writer, or <code>null</code>
+     */
+    @Nullable public final synchronized Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Sets the writer to which the report is written.
+     *
+     * <p>
+     * The writer is not closed by this component.
+     * </p>
+     *
+     * @param newWriter the writer
+     */
+    public final synchronized void setWriter(@Nullable final Writer newWriter) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        writer = newWriter;
+    }
+
+    /**
+     * Gets the format of the report.
+     *
+     * @return the format
+     */
+    @Nonnull public final synchronized Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format of the report.
+     *
+     * @param newFormat the format
+     */
+    public final synchronized void setFormat(@Nonnull final Format newFormat) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        format = Constraint.isNotNull(newFormat, "format can not be null");
+    }
+
+    /**
+     * Start the records for an execution of a stage.
+     *
+     * @throws IOException if the report file can not be created
+     */
+    synchronized void start() throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        // an earlier execution may have failed before finishing
+        closeFile();
+        failure = null;
+
+        if (file != null) {
+            out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+            writeHeader();
+        } else {
+            out = writer;
+            if (!headerWritten) {
+                writeHeader();
+                headerWritten = true;
+            }
+        }
+    }
+
+    /**
+     * Write a record.
+     *
+     * <p>
+     * Errors are not reported here, so that records can be written from within parallel
+     * tasks, but by {@link #finish()}.
+     * </p>
+     *
+     * @param action the action taken
+     * @param name the entity's display name
+     * @param entity the identifier of the entity
+     * @param otherName the display name used by the other entity
+     * @param otherEntity the identifier of the other entity
+     * @param detail the new name or similarity score, or <code>null</code>
+     */
+    synchronized void record(@Nonnull final String action, @Nonnull final String name,
+            @Nonnull final String entity, @Nonnull final String otherName, @Nonnull final String otherEntity,
+            @Nullable final String detail) {
+        if (out == null || failure != null) {
+            return;
+        }
+        try {
+            writeRecord(action, name, entity, otherName, otherEntity, detail == null ? "" : detail);
+        } catch (final IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Finish the records for an execution of a stage.
+     *
+     * @throws IOException if any record could not be written, or the report could not be
+     *  flushed or closed
+     */
+    synchronized void finish() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            out.flush();
+        } finally {
+            failure = null;
+            closeFile();
+            out = null;
+        }
+    }
+
+    /**
+     * Start the clash report, if there is one, for an execution of a stage.
+     *
+     * @param report the {@link DisplayNameClashReport}, or <code>null</code>
+     * @throws StageProcessingException if the report can not be started
+     */
+    static void startReport(@Nullable final DisplayNameClashReport report)
+            throws StageProcessingException {
+        if (report != null) {
+            try {
+                report.start();
+            } catch (final IOException e) {
+                throw new StageProcessingException("could not start display name clash report", e);
+            }
+        }
+    }
+
+    /**
+     * Finish the clash report, if there is one, for an execution of a stage.
+     *
+     * @param report the {@link DisplayNameClashReport}, or <code>null</code>
+     * @throws StageProcessingException if the report can not be written
+     */
+    static void finishReport(@Nullable final DisplayNameClashReport report)
+            throws StageProcessingException {
+        if (report != null) {
+            try {
+                report.finish();
+            } catch (final IOException e) {
+                throw new StageProcessingException("could not write display name clash report", e);
+            }
+        }
+    }
+
+    /**
+     * Close the writer for the current execution if it was opened by this component.
+     *
+     * @throws IOException if the file can not be closed
+     */
+    @GuardedBy("this")
+    private void closeFile() throws IOException {
+        if (out != null && out != writer) {
+            final Writer w = out;
+            out = null;
+            w.close();
+        }
+    }
+
+    /**
+     * Write the CSV header line, if required by the format.
+     *
+     * @throws IOException if the header can not be written
+     */
+    @GuardedBy("this")
+    private void writeHeader() throws IOException {
+        if (format == Format.CSV) {
+            writeLine(FIELDS);
+        }
+    }
+
+    /**
+     * Write a record in the current format.
+     *
+     * @param values the values of the fields, in the order of {@link #FIELDS}
+     * @throws IOException if the record can not be written
+     */
+    @GuardedBy("this")
+    private void writeRecord(@Nonnull final String... values) throws IOException {
+        if (format == Format.CSV) {
+            writeLine(values);
+            return;
+        }
+        final StringBuilder b = new StringBuilder(128);
+        b.append('{');
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            appendJSONString(b, FIELDS[i]);
+            b.append(':');
+            appendJSONString(b, values[i]);
+        }
+        b.append("}\n");
+        out.write(b.toString());
+    }
+
+    /**
+     * Write a line of comma-separated values.
+     *
+     * @param values the values to write
+     * @throws IOException if the line can not be written
+     */
+    @GuardedBy("this")
+    private void writeLine(@Nonnull final String[] values) throws IOException {
+        final StringBuilder b = new StringBuilder(128);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            final String value = values[i];
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ||
+                    value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+                b.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                b.append(value);
+            }
+        }
+        b.append("\r\n");
+        out.write(b.toString());
+    }
+
+    /**
+     * Append a string to a {@link StringBuilder} as a JSON string literal.
+     *
+     * @param b the {@link StringBuilder} to append to
+     * @param value the string to append
+     */
+    private static void appendJSONString(@Nonnull final StringBuilder b, @Nonnull final String value) {
+        b.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+
+                case '\\':
+                    b.append("\\\\");
+                    break;
+
+                case '\n':
+                    b.append("\\n");
+                    break;
+
+                case '\r':
+                    b.append("\\r");
+                    break;
+
+                case '\t':
+                    b.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        b.append('"');
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if ((file == null) == (writer == null)) {
+            throw new ComponentInitializationException("exactly one of file and writer must be provided");
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        try {
+            closeFile();
+        } catch (final IOException e) {
+            // nothing more can be done with the report
+        }
+        out = null;
+        writer = null;
+
+        super.doDestroy();
+    }
+
+}
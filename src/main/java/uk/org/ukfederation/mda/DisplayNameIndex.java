@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * An index of the identity providers in a collection of items and their discovery names,
+ * built once by {@link IdPDisplayNameDeconflictingStage} and shared by the display name
+ * stages it executes.
+ *
+ * <p>
+ * The index records, for each position in the collection, whether the item is an
+ * <code>EntityDescriptor</code> and, for identity providers, the discovery name elements
+ * and their trimmed text. It also records, for each lower-cased discovery name, the
+ * positions of the identity providers using it, so that the first owner of a name can be
+ * found without a further pass over the collection. Names rewritten by
+ * {@link IdPDisplayNameDuplicateAvoidingStage} are reported through {@link #rename}, so
+ * that the index stays accurate for {@link IdPDisplayNameDuplicateDetectingStage}.
+ * </p>
+ *
+ * <p>
+ * The index is attached as {@link ItemMetadata} to the first item of the collection, so
+ * that it reaches each stage through its <code>execute</code> method and through any
+ * wrapper around it. A stage only uses the index if it {@link #describes} the collection
+ * being processed, and otherwise behaves as if there were no index.
+ * </p>
+ */
+@ThreadSafe
+final class DisplayNameIndex implements ItemMetadata {
+
+    /** The items indexed, in collection order. */
+    @Nonnull @NonnullElements private final List<Item<Element>> items;
+
+    /** Position of each item, keyed by identity. Not modified after construction. */
+    @Nonnull private final Map<Item<Element>, Integer> positions;
+
+    /** Whether the item at each position is an <code>EntityDescriptor</code>. */
+    @Nonnull private final boolean[] entities;
+
+    /** Discovery name elements at each position, or <code>null</code> if not an identity provider. */
+    @Nonnull private final List<List<Element>> nameElements;
+
+    /** Trimmed discovery names at each position, or <code>null</code> if not an identity provider. */
+    @Nonnull @GuardedBy("this") private final List<List<String>> names;
+
+    /** Positions of the identity providers using each lower-cased discovery name, in ascending order. */
+    @Nonnull @GuardedBy("this") private final Map<String, List<Integer>> owners;
+
+    /**
+     * Constructor.
+     *
+     * @param indexedItems the items to index
+     * @param entityFlags whether the item at each position is an <code>EntityDescriptor</code>
+     * @param elements the discovery name elements at each position, or <code>null</code>
+     *  for items which are not identity providers
+     */
+    DisplayNameIndex(@Nonnull @NonnullElements final List<Item<Element>> indexedItems,
+            @Nonnull final boolean[] entityFlags, @Nonnull final List<List<Element>> elements) {
+        final int count = indexedItems.size();
+        items = new ArrayList<>(indexedItems);
+        positions = new IdentityHashMap<>(count);
+        entities = entityFlags;
+        nameElements = elements;
+        names = new ArrayList<>(Collections.nCopies(count, null));
+        owners = new HashMap<>(count);
+        for (int position = 0; position < count; position++) {
+            positions.put(items.get(position), position);
+            final List<Element> entityElements = elements.get(position);
+            if (entityElements != null) {
+                final List<String> entityNames = new ArrayList<>(entityElements.size());
+                for (final Element element : entityElements) {
+                    final String name = element.getTextContent().trim();
+                    entityNames.add(name);
+                    addOwner(name, position);
+                }
+                names.set(position, entityNames);
+            }
+        }
+    }
+
+    /**
+     * Find the index attached to a collection of items.
+     *
+     * @param collection the items being processed
+     * @return the {@link DisplayNameIndex} describing the collection, or <code>null</code>
+     *  if there is none
+     */
+    @Nullable static DisplayNameIndex find(@Nonnull @NonnullElements final List<Item<Element>> collection) {
+        if (collection.isEmpty()) {
+            return null;
+        }
+        for (final DisplayNameIndex index : collection.get(0).getItemMetadata().get(DisplayNameIndex.class)) {
+            if (index.describes(collection)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether this index describes the given collection: that is, whether it
+     * holds the same items in the same order.
+     *
+     * @param collection the items being processed
+     * @return <code>true</code> if the index describes the collection
+     */
+    boolean describes(@Nonnull @NonnullElements final List<Item<Element>> collection) {
+        if (collection.size() != items.size()) {
+            return false;
+        }
+        for (int position = 0; position < items.size(); position++) {
+            if (collection.get(position) != items.get(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the item at the given position is an <code>EntityDescriptor</code>.
+     *
+     * @param position the item's position
+     * @return <code>true</code> if the item is an <code>EntityDescriptor</code>
+     */
+    boolean isEntity(final int position) {
+        return entities[position];
+    }
+
+    /**
+     * Returns the discovery name elements of an item.
+     *
+     * @param item an item in the indexed collection
+     * @return the item's discovery name elements, or <code>null</code> if it is not an
+     *  identity provider
+     */
+    @Nullable List<Element> getNameElements(@Nonnull final Item<Element> item) {
+        return nameElements.get(positions.get(item));
+    }
+
+    /**
+     * Returns the trimmed discovery names of the item at the given position, including
+     * any rewritten names.
+     *
+     * @param position the item's position
+     * @return the item's discovery names, in document order, or <code>null</code> if it
+     *  is not an identity provider
+     */
+    @Nullable synchronized List<String> getNames(final int position) {
+        final List<String> entityNames = names.get(position);
+        return entityNames == null ? null : Collections.unmodifiableList(entityNames);
+    }
+
+    /**
+     * Returns the position of the first identity provider using a discovery name.
+     *
+     * @param key the lower-cased discovery name
+     * @return the position of the first identity provider using the name, or -1 if there is none
+     */
+    synchronized int getFirstOwner(@Nonnull final String key) {
+        final List<Integer> keyOwners = owners.get(key);
+        return keyOwners == null || keyOwners.isEmpty() ? -1 : keyOwners.get(0);
+    }
+
+    /**
+     * Record that one of an identity provider's discovery names has been rewritten.
+     *
+     * @param item the item representing the identity provider
+     * @param oldName the trimmed discovery name before rewriting
+     * @param newName the discovery name after rewriting
+     */
+    synchronized void rename(@Nonnull final Item<Element> item, @Nonnull final String oldName,
+            @Nonnull final String newName) {
+        final int position = positions.get(item);
+        final List<String> entityNames = names.get(position);
+        final String trimmedName = newName.trim();
+        entityNames.set(entityNames.indexOf(oldName), trimmedName);
+
+        // the entity only stops owning the old name if none of its other names match it
+        final String oldKey = oldName.toLowerCase();
+        boolean stillOwned = false;
+        for (final String name : entityNames) {
+            if (name.toLowerCase().equals(oldKey)) {
+                stillOwned = true;
+                break;
+            }
+        }
+        if (!stillOwned) {
+            owners.get(oldKey).remove(Integer.valueOf(position));
+        }
+        addOwner(trimmedName, position);
+    }
+
+    /**
+     * Record that the identity provider at a given position uses a discovery name.
+     *
+     * @param name the trimmed discovery name
+     * @param position the identity provider's position
+     */
+    @GuardedBy("this")
+    private void addOwner(@Nonnull final String name, final int position) {
+        final List<Integer> keyOwners = owners.computeIfAbsent(name.toLowerCase(), k -> new ArrayList<>(1));
+        final int at = Collections.binarySearch(keyOwners, position);
+        if (at < 0) {
+            keyOwners.add(-at - 1, position);
+        }
+    }
+
+}
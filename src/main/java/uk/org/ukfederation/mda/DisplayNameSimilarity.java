@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Support for finding display names which are similar, but not identical.
+ *
+ * <p>
+ * Names are first normalised: diacritics are removed, case is folded, punctuation
+ * is treated as a word separator, common function words ("of", "the", ...) are
+ * discarded and the remaining words are sorted. "The University of Example" and
+ * "Example University" therefore have the same normalised form.
+ * </p>
+ *
+ * <p>
+ * Normalised names are compared by the Jaccard similarity of their sets of
+ * character trigrams. Candidate pairs are found using an inverted index over a
+ * prefix of each name's trigrams, ordered from rarest to most common, which is
+ * guaranteed to contain a shared trigram for any pair meeting the similarity
+ * threshold. Only candidate pairs have their similarity computed, so the cost does
+ * not grow with the square of the number of names.
+ * </p>
+ */
+@ThreadSafe
+final class DisplayNameSimilarity {
+
+    /** Words discarded during normalisation. */
+    @Nonnull private static final Set<String> STOPWORDS = Set.of(
+            "a", "and", "at", "de", "del", "der", "des", "di", "die", "du", "et", "for",
+            "in", "la", "le", "les", "of", "the", "und", "van", "von", "y");
+
+    /** Length of the character n-grams compared. */
+    private static final int GRAM_LENGTH = 3;
+
+    /** Allowance for rounding when computing prefix lengths. */
+    private static final double EPSILON = 1e-9;
+
+    /** A pair of similar names. */
+    @Immutable
+    static final class Match {
+
+        /** Position of the earlier name. */
+        private final int first;
+
+        /** Position of the later name. */
+        private final int second;
+
+        /** Similarity of the two names. */
+        private final double similarity;
+
+        /**
+         * Constructor.
+         *
+         * @param firstIndex position of the earlier name
+         * @param secondIndex position of the later name
+         * @param sim similarity of the two names
+         */
+        Match(final int firstIndex, final int secondIndex, final double sim) {
+            first = firstIndex;
+            second = secondIndex;
+            similarity = sim;
+        }
+
+        /**
+         * Gets the position of the earlier name.
+         *
+         * @return the position of the earlier name
+         */
+        int getFirst() {
+            return first;
+        }
+
+        /**
+         * Gets the position of the later name.
+         *
+         * @return the position of the later name
+         */
+        int getSecond() {
+            return second;
+        }
+
+        /**
+         * Gets the similarity of the two names, between 0 and 1.
+         *
+         * @return the similarity of the two names
+         */
+        double getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /** Constructor. */
+    private DisplayNameSimilarity() {
+    }
+
+    /**
+     * Normalise a display name for similarity comparison.
+     *
+     * @param name the display name
+     * @return the normalised name, which may be empty
+     */
+    @Nonnull static String normalise(@Nonnull final String name) {
+        final String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        final StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            final int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                continue;
+            }
+            folded.append(Character.isLetterOrDigit(c) ? c : ' ');
+        }
+
+        final List<String> words = new ArrayList<>();
+        for (final String word : folded.toString().toLowerCase(Locale.ROOT).split(" +")) {
+            if (!word.isEmpty() && !STOPWORDS.contains(word)) {
+                words.add(word);
+            }
+        }
+        words.sort(Comparator.naturalOrder());
+        return String.join(" ", words);
+    }
+
+    /**
+     * Find the pairs of names whose similarity is at least the given threshold.
+     *
+     * @param names distinct normalised names
+     * @param threshold minimum similarity to report, greater than 0 and at most 1
+     * @return the similar pairs, ordered by the position of the later name and then
+     *  of the earlier name
+     */
+    @Nonnull @NonnullElements
+    static List<Match> findSimilar(@Nonnull @NonnullElements final List<String> names, final double threshold) {
+        final int count = names.size();
+
+        // Represent each name by its sorted set of trigram numbers.
+        final Map<String, Integer> gramNumbers = new HashMap<>();
+        final int[][] grams = new int[count][];
+        for (int n = 0; n < count; n++) {
+            final String padded = " " + names.get(n) + " ";
+            final int[] numbers = new int[Math.max(0, padded.length() - GRAM_LENGTH + 1)];
+            for (int i = 0; i < numbers.length; i++) {
+                final Integer next = gramNumbers.size();
+                final Integer number = gramNumbers.putIfAbsent(padded.substring(i, i + GRAM_LENGTH), next);
+                numbers[i] = number == null ? next : number;
+            }
+            grams[n] = Arrays.stream(numbers).sorted().distinct().toArray();
+        }
+
+        // Count the names containing each trigram.
+        final int[] frequency = new int[gramNumbers.size()];
+        for (final int[] set : grams) {
+            for (final int gram : set) {
+                frequency[gram]++;
+            }
+        }
+
+        // Order each name's trigrams from rarest to most common.
+        final int[][] ordered = new int[count][];
+        for (int n = 0; n < count; n++) {
+            final long[] keys = new long[grams[n].length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = ((long) frequency[grams[n][i]] << 32) | grams[n][i];
+            }
+            Arrays.sort(keys);
+            ordered[n] = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ordered[n][i] = (int) keys[i];
+            }
+        }
+
+        /*
+         * Inverted index from trigram to the names having it in their prefix,
+         * each list held as an array with its length in the first element.
+         */
+        final int[][] index = new int[gramNumbers.size()][];
+        final List<Match> matches = new ArrayList<>();
+        final int[] lastSeen = new int[count];
+        Arrays.fill(lastSeen, -1);
+        int[] candidates = new int[16];
+        for (int n = 0; n < count; n++) {
+            final int size = grams[n].length;
+            if (size == 0) {
+                continue;
+            }
+            // a very small threshold would give a prefix longer than the name itself
+            final int prefix = Math.min(size, size - (int) Math.ceil(threshold * size - EPSILON) + 1);
+
+            // Probe the index with the prefix to find candidates.
+            int candidateCount = 0;
+            for (int p = 0; p < prefix; p++) {
+                final int[] postings = index[ordered[n][p]];
+                if (postings == null) {
+                    continue;
+                }
+                for (int i = 1; i <= postings[0]; i++) {
+                    final int other = postings[i];
+                    final int otherSize = grams[other].length;
+                    if (lastSeen[other] != n && otherSize >= threshold * size - EPSILON
+                            && size >= threshold * otherSize - EPSILON) {
+                        lastSeen[other] = n;
+                        if (candidateCount == candidates.length) {
+                            candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                        }
+                        candidates[candidateCount++] = other;
+                    }
+                }
+            }
+
+            // Verify each candidate.
+            Arrays.sort(candidates, 0, candidateCount);
+            for (int c = 0; c < candidateCount; c++) {
+                final double similarity = jaccard(grams[candidates[c]], grams[n]);
+                if (similarity >= threshold - EPSILON) {
+                    matches.add(new Match(candidates[c], n, similarity));
+                }
+            }
+
+            // Add this name's prefix to the index.
+            for (int p = 0; p < prefix; p++) {
+                final int gram = ordered[n][p];
+                int[] postings = index[gram];
+                if (postings == null) {
+                    postings = new int[4];
+                } else if (postings[0] == postings.length - 1) {
+                    postings = Arrays.copyOf(postings, postings.length * 2);
+                }
+                postings[++postings[0]] = n;
+                index[gram] = postings;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Compute the Jaccard similarity of two sorted sets of numbers.
+     *
+     * @param a the first set, in ascending order
+     * @param b the second set, in ascending order
+     * @return the similarity of the two sets
+     */
+    private static double jaccard(@Nonnull final int[] a, @Nonnull final int[] b) {
+        int i = 0;
+        int j = 0;
+        int shared = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
+
+/**
+ * Support methods for locating the display names of an entity, shared by the
+ * display name checking stages.
+ */
+@ThreadSafe
+final class DisplayNameSupport {
+
+    /** {@link QName} representing a SAML metadata <code>Extensions</code> element. */
+    private static final QName MD_EXTENSIONS = new QName(SAMLMetadataSupport.MD_NS, "Extensions");
+
+    /** {@link QName} representing a SAML metadata <code>Organization</code> element. */
+    private static final QName MD_ORGANIZATION = new QName(SAMLMetadataSupport.MD_NS, "Organization");
+
+    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
+    private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
+
+    /** {@link QName} representing an <code>mdui:UIInfo</code> element. */
+    private static final QName MDUI_UIINFO = new QName(MDUISupport.MDUI_NS, "UIInfo");
+
+    /** {@link QName} representing a SAML metadata <code>IDPSSODescriptor</code>. */
+    private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
+
+    /** Constructor. */
+    private DisplayNameSupport() {
+    }
+
+    /**
+     * Collect the children of the given {@link Element} with the given {@link QName}.
+     * 
+     * @param parent {@link Element} whose children should be inspected
+     * @param qname name of the elements to collect
+     * @param elements collection of elements to add into
+     */
+    private static void collectChildren(@Nonnull final Element parent, @Nonnull final QName qname,
+            @Nonnull @NonnullElements final List<Element> elements) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && ElementSupport.isElementNamed((Element) n, qname)) {
+                elements.add((Element) n);
+            }
+        }
+    }
+
+    /**
+     * Collect the display name elements declared directly by an <code>EntityDescriptor</code>
+     * or a role descriptor.
+     * 
+     * <code>mdui:DisplayName</code>s are found within <code>md:Extensions/mdui:UIInfo</code>,
+     * and <code>md:OrganizationDisplayName</code>s within <code>md:Organization</code>.
+     * 
+     * @param container the <code>EntityDescriptor</code> or role descriptor to look inside
+     * @param mduiNames collection of <code>mdui:DisplayName</code> elements to add into
+     * @param orgNames collection of <code>md:OrganizationDisplayName</code> elements to add into
+     * @param descend whether to look inside role descriptors which are children of the container
+     */
+    private static void collectContainerNames(@Nonnull final Element container,
+            @Nonnull @NonnullElements final List<Element> mduiNames,
+            @Nonnull @NonnullElements final List<Element> orgNames, final boolean descend) {
+        for (Node n = container.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                final Element child = (Element) n;
+                if (ElementSupport.isElementNamed(child, MD_EXTENSIONS)) {
+                    for (Node e = child.getFirstChild(); e != null; e = e.getNextSibling()) {
+                        if (e instanceof Element && ElementSupport.isElementNamed((Element) e, MDUI_UIINFO)) {
+                            collectChildren((Element) e, MDUISupport.MDUI_DISPLAY_NAME, mduiNames);
+                        }
+                    }
+                } else if (ElementSupport.isElementNamed(child, MD_ORGANIZATION)) {
+                    collectChildren(child, MD_ORG_DISPLAY_NAME, orgNames);
+                } else if (descend && SAMLMetadataSupport.MD_NS.equals(child.getNamespaceURI())) {
+                    // possibly a role descriptor
+                    collectContainerNames(child, mduiNames, orgNames, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether an <code>EntityDescriptor</code> represents an identity provider,
+     * by looking for an <code>IDPSSODescriptor</code> child.
+     *
+     * @param entity the {@link Element} representing the entity
+     * @return <code>true</code> if the entity is an identity provider
+     */
+    static boolean isIdentityProvider(@Nonnull final Element entity) {
+        for (Node n = entity.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && ElementSupport.isElementNamed((Element) n, MD_IDP_SSO_DESCRIPTOR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the {@link Element}s holding an entity's discovery names.
+     * 
+     * <p>
+     * This is the entity's <code>mdui:DisplayName</code> elements or, if there are none,
+     * any <code>md:OrganizationDisplayName</code> elements it has.
+     * </p>
+     * 
+     * <p>
+     * Rather than searching the whole of the entity's DOM, only the places in which the
+     * SAML metadata schema permits these elements are visited, in a single traversal.
+     * </p>
+     *
+     * @param entity the {@link Element} representing the entity
+     * @return a {@link List} of {@link Element}s in document order, possibly empty
+     */
+    @Nonnull @NonnullElements
+    static List<Element> extractDiscoveryNameElements(@Nonnull final Element entity) {
+        final List<Element> mduiNames = new ArrayList<>();
+        final List<Element> orgNames = new ArrayList<>();
+        collectContainerNames(entity, mduiNames, orgNames, true);
+        return mduiNames.isEmpty() ? orgNames : mduiNames;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A precompiled template for new discovery names.
+ *
+ * <p>
+ * The template is written as a {@link MessageFormat} pattern in which <code>{0}</code>
+ * represents the original name and <code>{1}</code> the registration authority's display
+ * name. Single quotes are interpreted as by {@link MessageFormat}; format types and styles
+ * are not supported, as both arguments are strings.
+ * </p>
+ *
+ * <p>
+ * Expanding the template appends to a caller-supplied {@link StringBuilder}, so that no
+ * argument arrays or intermediate buffers are allocated for each name.
+ * </p>
+ */
+@Immutable
+final class DisplayNameTemplate {
+
+    /** Literal text before each argument, and after the last one. */
+    @Nonnull private final String[] literals;
+
+    /** Index of each argument in the template. */
+    @Nonnull private final int[] arguments;
+
+    /**
+     * Constructor.
+     *
+     * @param literalParts literal text before each argument, and after the last one
+     * @param argumentIndexes index of each argument
+     */
+    private DisplayNameTemplate(@Nonnull final String[] literalParts, @Nonnull final int[] argumentIndexes) {
+        literals = literalParts;
+        arguments = argumentIndexes;
+    }
+
+    /**
+     * Compile a template from a {@link MessageFormat} pattern.
+     *
+     * @param pattern the pattern to compile
+     * @return the compiled template
+     * @throws IllegalArgumentException if the pattern is not valid, or uses format types
+     */
+    @Nonnull static DisplayNameTemplate compile(@Nonnull final String pattern) {
+        final List<String> literalParts = new ArrayList<>();
+        final List<Integer> argumentIndexes = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        boolean quoted = false;
+        int pos = 0;
+        while (pos < pattern.length()) {
+            final char c = pattern.charAt(pos++);
+            if (c == '\'') {
+                if (pos < pattern.length() && pattern.charAt(pos) == '\'') {
+                    // a doubled quote is a literal quote, inside or outside quoted text
+                    literal.append('\'');
+                    pos++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                final int end = pattern.indexOf('}', pos);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unmatched braces in name format: " + pattern);
+                }
+                final String argument = pattern.substring(pos, end);
+                if (argument.isEmpty() || !argument.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
+                    throw new IllegalArgumentException("unsupported argument {" + argument +
+                            "} in name format: " + pattern);
+                }
+                literalParts.add(literal.toString());
+                literal.setLength(0);
+                argumentIndexes.add(Integer.valueOf(argument));
+                pos = end + 1;
+            } else {
+                literal.append(c);
+            }
+        }
+        literalParts.add(literal.toString());
+
+        final int[] indexes = new int[argumentIndexes.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = argumentIndexes.get(i);
+        }
+        return new DisplayNameTemplate(literalParts.toArray(new String[0]), indexes);
+    }
+
+    /**
+     * Expand the template, appending the result to a {@link StringBuilder}.
+     *
+     * <p>
+     * As with {@link MessageFormat}, arguments other than <code>{0}</code> and <code>{1}</code>
+     * are reproduced unchanged.
+     * </p>
+     *
+     * @param builder the {@link StringBuilder} to append to
+     * @param name the original discovery name
+     * @param registrationHandle the display name for the entity's registration authority
+     * @return the {@link StringBuilder}
+     */
+    @Nonnull StringBuilder appendTo(@Nonnull final StringBuilder builder, @Nonnull final String name,
+            @Nonnull final String registrationHandle) {
+        for (int i = 0; i < arguments.length; i++) {
+            builder.append(literals[i]);
+            switch (arguments[i]) {
+                case 0:
+                    builder.append(name);
+                    break;
+
+                case 1:
+                    builder.append(registrationHandle);
+                    break;
+
+                default:
+                    builder.append('{').append(arguments[i]).append('}');
+            }
+        }
+        return builder.append(literals[arguments.length]);
+    }
+
+}
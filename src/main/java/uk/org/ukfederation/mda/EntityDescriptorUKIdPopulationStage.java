@@ -14,12 +14,13 @@
 
 package uk.org.ukfederation.mda;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -31,69 +32,169 @@ import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
-import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
 
 /**
  * A stage which, for each EntityDescriptor collection element, adds a {@link UKId}, with the entity's ID, to
  * the metadata item.
+ *
+ * <p>
+ * UK federation identifiers are of the form <code>uk</code> followed by exactly six decimal
+ * digits. Each identifier is decoded to its numeric value, and duplicates are detected
+ * using a fixed-size bit set indexed by that value. The {@link UKId}s added are the
+ * canonical instances for each value.
+ * </p>
+ *
+ * <p>
+ * If an {@link ExecutorService} is supplied, ID values are extracted from the items in
+ * parallel. Results are always attached to the items in a single sequential pass, so
+ * the first occurrence of a duplicated ID in list order is the one accepted, exactly as
+ * in sequential mode.
+ * </p>
+ *
+ * <p>
+ * If a {@link UKIdRegistry} is supplied, each accepted ID is also checked against the IDs
+ * seen in previous runs, and an error is added to any entity whose ID was previously used
+ * by an entity with a different <code>entityID</code>.
+ * </p>
+ *
+ * <p>
+ * Properties, in addition to the <code>executorService</code> and <code>chunkSize</code>
+ * inherited from {@link AbstractParallelStage}:
+ * </p>
+ *
+ * <dl>
+ *   <dt>idRegistry</dt>
+ *   <dd>
+ *      The {@link UKIdRegistry} used to detect reuse of IDs across runs.
+ *      By default, <code>null</code>, meaning that no such check is made.
+ *   </dd>
+ * </dl>
  */
 @ThreadSafe
-public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element> {
+public class EntityDescriptorUKIdPopulationStage extends AbstractParallelStage<Element> {
+
+    /** Extraction result for an item which is not an <code>EntityDescriptor</code>. */
+    private static final int NOT_ENTITY = -3;
+
+    /** Extraction result for an entity without an <code>ID</code> attribute. */
+    private static final int NO_ID = -2;
 
     /**
-     * Compiled regular expression.
+     * Persistent registry of previously seen IDs.
+     *
+     * <p>
+     * Default value: <code>null</code>, meaning that IDs are not checked against previous runs.
+     * </p>
      */
-    @GuardedBy("this") private Pattern pattern;
+    @Nullable @GuardedBy("this")
+    private UKIdRegistry idRegistry;
 
-    @Override
-    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
-            throws StageProcessingException {
+    /**
+     * Gets the persistent registry of previously seen IDs.
+     *
+     * @return the {@link UKIdRegistry}, or <code>null</code> if none is in use
+     */
+    @Nullable public final synchronized UKIdRegistry getIdRegistry() {
+        return idRegistry;
+    }
 
-        // ID values that we have already seen (they must be unique)
-        final Set<String> ids = new HashSet<>(items.size());
-        
-        for (final Item<Element> item : items) {
-           final Element element = item.unwrap();
-           final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
-           
-           if (!SAMLMetadataSupport.isEntityDescriptor(element)) {
-               // all items must be EntityDescriptor elements
-               metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
-           } else {
-               final String id = AttributeSupport.getAttributeValue(element, null, "ID");
-               final String eid = Strings.nullToEmpty(AttributeSupport.getAttributeValue(element, null, "entityID"));
-               if (id == null) {
-                   metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " did not have an ID attribute"));
-               } else if (!pattern.matcher(id).matches()) {
-                   metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has an ID value '" + id +
-                           "' that does not look like a UK federation identifier"));
-               } else if (ids.contains(id)) {
-                   metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has duplicate ID value " + id));
-               } else {
-                   metadata.put(new UKId(id));
-                   ids.add(id);
-               }
-           }
-           
-        }
+    /**
+     * Sets the persistent registry of previously seen IDs.
+     *
+     * <p>
+     * The registry is not initialized or destroyed by this stage.
+     * </p>
+     *
+     * @param registry the {@link UKIdRegistry}, or <code>null</code> to disable the check
+     */
+    public final synchronized void setIdRegistry(@Nullable final UKIdRegistry registry) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        idRegistry = registry;
     }
-    
-    @Override
-    protected void doDestroy() {
-        pattern = null;
 
-        super.doDestroy();
+    /**
+     * Check an entity's ID against the persistent registry, recording it if it has not been
+     * seen before and adding an error if it was previously used by a different entity.
+     *
+     * @param registry the {@link UKIdRegistry} to check against
+     * @param number numeric value of the entity's ID
+     * @param id the entity's ID
+     * @param eid the entity's <code>entityID</code>
+     * @param metadata item metadata collection for the entity
+     * @throws StageProcessingException if the registry can not be accessed
+     */
+    private void checkRegistry(@Nonnull final UKIdRegistry registry, final int number, @Nonnull final String id,
+            @Nonnull final String eid, @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata)
+            throws StageProcessingException {
+        try {
+            final String previous = registry.register(number, eid);
+            if (previous != null) {
+                metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has ID value " + id +
+                        " previously used by " + previous + " (first seen " + registry.getFirstSeen(number) + ")"));
+            }
+        } catch (final IOException e) {
+            throw new StageProcessingException("could not access UK ID registry", e);
+        }
     }
 
     @Override
-    protected void doInitialize() throws ComponentInitializationException {
-        super.doInitialize();
-        pattern = Pattern.compile("^uk[0-9]{6}$");
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final int count = items.size();
+
+        // Phase 1: extract and decode the ID values, possibly in parallel
+        final String[] idValues = new String[count];
+        final String[] entityIDs = new String[count];
+        final int[] numbers = new int[count];
+        forEachIndex(count, index -> {
+            final Element element = items.get(index).unwrap();
+            if (!SAMLMetadataSupport.isEntityDescriptor(element)) {
+                numbers[index] = NOT_ENTITY;
+            } else {
+                final String id = AttributeSupport.getAttributeValue(element, null, "ID");
+                idValues[index] = id;
+                entityIDs[index] = Strings.nullToEmpty(AttributeSupport.getAttributeValue(element, null, "entityID"));
+                numbers[index] = id == null ? NO_ID : UKId.parseNumber(id);
+            }
+        });
+
+        // Phase 2: attach results in list order, so that the first occurrence of an ID wins
+
+        final UKIdRegistry registry = getIdRegistry();
+
+        // ID values that we have already seen (they must be unique), indexed by numeric value
+        final BitSet ids = new BitSet(UKId.ID_SPACE);
+
+        for (int index = 0; index < count; index++) {
+            final ClassToInstanceMultiMap<ItemMetadata> metadata = items.get(index).getItemMetadata();
+            final int number = numbers[index];
+            final String id = idValues[index];
+            final String eid = entityIDs[index];
+            if (number == NOT_ENTITY) {
+                // all items must be EntityDescriptor elements
+                metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
+            } else if (number == NO_ID) {
+                metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " did not have an ID attribute"));
+            } else if (number < 0) {
+                metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has an ID value '" + id +
+                        "' that does not look like a UK federation identifier"));
+            } else if (ids.get(number)) {
+                metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has duplicate ID value " + id));
+            } else {
+                metadata.put(UKId.valueOf(number));
+                ids.set(number);
+                if (registry != null && !eid.isEmpty()) {
+                    checkRegistry(registry, number, id, eid, metadata);
+                }
+            }
+        }
     }
 
 }
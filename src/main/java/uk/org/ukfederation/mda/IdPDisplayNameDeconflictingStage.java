@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
+
+/**
+ * A stage which combines an {@link IdPDisplayNameDuplicateAvoidingStage} and an
+ * {@link IdPDisplayNameDuplicateDetectingStage}, locating the discovery names of
+ * each entity only once.
+ *
+ * <p>
+ * Before executing the two stages, this stage builds a {@link DisplayNameIndex} recording
+ * which items are identity providers, their discovery names, and the identity providers
+ * using each name. The index is attached to the first item, and both stages use it in
+ * place of their own traversals of the collection; the avoiding stage records each name
+ * it rewrites in the index, so that the detecting stage sees the rewritten names. The
+ * index is removed again before this stage returns. The result, including the status
+ * metadata added to each item, is the same as executing the two stages in sequence.
+ * </p>
+ *
+ * <p>
+ * Each of the stages is configured in the usual way, may be wrapped (for example, by an
+ * <code>InstrumentedStage</code>), and must be initialized before this stage is used.
+ * The stages are executed through their own <code>execute</code> methods. Any
+ * <code>executorService</code> configured on the avoiding stage is used as usual; the
+ * detecting stage has no names left to extract, so it works sequentially from the index.
+ * </p>
+ *
+ * <p>
+ * Properties, in addition to the <code>executorService</code> and <code>chunkSize</code>
+ * inherited from {@link AbstractParallelStage}, which are used to locate the discovery
+ * names of the entities:
+ * </p>
+ *
+ * <dl>
+ *   <dt>avoidingStage</dt>
+ *   <dd>
+ *      The {@link IdPDisplayNameDuplicateAvoidingStage}, or a stage wrapping it, used to
+ *      deconflict discovery names. Required.
+ *   </dd>
+ *
+ *   <dt>detectingStage</dt>
+ *   <dd>
+ *      The {@link IdPDisplayNameDuplicateDetectingStage}, or a stage wrapping it, used to
+ *      report any remaining duplicate display names. Required.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class IdPDisplayNameDeconflictingStage extends AbstractParallelStage<Element> {
+
+    /** The stage used to deconflict discovery names. */
+    @Nullable @GuardedBy("this")
+    private Stage<Element> avoidingStage;
+
+    /** The stage used to report any remaining duplicate display names. */
+    @Nullable @GuardedBy("this")
+    private Stage<Element> detectingStage;
+
+    /**
+     * Gets the stage used to deconflict discovery names.
+     *
+     * @return the avoiding stage
+     */
+    @Nullable public final synchronized Stage<Element> getAvoidingStage() {
+        return avoidingStage;
+    }
+
+    /**
+     * Sets the stage used to deconflict discovery names.
+     *
+     * @param stage the avoiding stage
+     */
+    public final synchronized void setAvoidingStage(@Nonnull final Stage<Element> stage) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        avoidingStage = stage;
+    }
+
+    /**
+     * Gets the stage used to report any remaining duplicate display names.
+     *
+     * @return the detecting stage
+     */
+    @Nullable public final synchronized Stage<Element> getDetectingStage() {
+        return detectingStage;
+    }
+
+    /**
+     * Sets the stage used to report any remaining duplicate display names.
+     *
+     * @param stage the detecting stage
+     */
+    public final synchronized void setDetectingStage(@Nonnull final Stage<Element> stage) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        detectingStage = stage;
+    }
+
+    /**
+     * Build the {@link DisplayNameIndex} for a collection of items.
+     *
+     * The discovery name elements of each identity provider are located in parallel, if an
+     * executor has been supplied; the index itself is then built in list order.
+     *
+     * @param items the items to index
+     * @return the {@link DisplayNameIndex} describing the items
+     * @throws StageProcessingException if the parallel processing fails
+     */
+    @Nonnull private DisplayNameIndex buildIndex(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final int count = items.size();
+        final boolean[] entities = new boolean[count];
+        final List<List<Element>> nameElements = new ArrayList<>(Collections.nCopies(count, null));
+        forEachIndex(count, index -> {
+            final Element entity = items.get(index).unwrap();
+            if (SAMLMetadataSupport.isEntityDescriptor(entity)) {
+                entities[index] = true;
+                if (DisplayNameSupport.isIdentityProvider(entity)) {
+                    nameElements.set(index, DisplayNameSupport.extractDiscoveryNameElements(entity));
+                }
+            }
+        });
+        return new DisplayNameIndex(items, entities, nameElements);
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        if (items.isEmpty()) {
+            getAvoidingStage().execute(items);
+            getDetectingStage().execute(items);
+            return;
+        }
+
+        final DisplayNameIndex index = buildIndex(items);
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = items.get(0).getItemMetadata();
+        metadata.put(index);
+        try {
+            getAvoidingStage().execute(items);
+            getDetectingStage().execute(items);
+        } finally {
+            metadata.remove(index);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        avoidingStage = null;
+        detectingStage = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (avoidingStage == null) {
+            throw new ComponentInitializationException("avoidingStage must be provided");
+        }
+        if (detectingStage == null) {
+            throw new ComponentInitializationException("detectingStage must be provided");
+        }
+        if (!avoidingStage.isInitialized() || !detectingStage.isInitialized()) {
+            throw new ComponentInitializationException("avoidingStage and detectingStage must be initialized");
+        }
+    }
+
+}
@@ -18,50 +18,81 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
 import net.shibboleth.metadata.InfoStatus;
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemIdentificationStrategy;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
-import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
-import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
 
 /**
  * A stage which examines the discovery names used by each of a collection of entities, and deconflicts
  * those discovery names prioritising "our" entities and adjusting the discovery names of others.
  *
- * <p>Properties:</p>
+ * <p>
+ * If an {@link ExecutorService} is supplied, the other entities are checked and their
+ * discovery names adjusted in parallel, once the names used by "our" entities have been
+ * collected. Each item is processed by a single task, so the status metadata added to each
+ * item is the same as in sequential mode.
+ * </p>
+ *
+ * <p>
+ * When executed by an {@link IdPDisplayNameDeconflictingStage}, each entity's discovery name
+ * elements are taken from the {@link DisplayNameIndex} it has built, and each rewritten name
+ * is recorded in that index.
+ * </p>
+ *
+ * <p>
+ * Properties, in addition to the <code>executorService</code> and <code>chunkSize</code>
+ * inherited from {@link AbstractParallelStage}:
+ * </p>
  * 
  * <dl>
  *   <dt>registrationAuthority</dt>
  *   <dd>
  *      The registration authority whose discovery names
  *      should be preserved. By default, <code>"http://ukfederation.org.uk"</code>.
+ *      Ignored if <code>protectedRegistrationAuthorities</code> is set.
+ *   </dd>
+ *
+ *   <dt>protectedRegistrationAuthorities</dt>
+ *   <dd>
+ *      A {@link List} of registration authorities whose discovery names should be
+ *      preserved, highest priority first. A discovery name used by one of these authorities
+ *      is rewritten in the entities of any lower priority authority, and of any unprotected
+ *      authority. By default, empty, meaning that only the <code>registrationAuthority</code>
+ *      is protected.
  *   </dd>
  *
  *   <dt>registrationAuthorityDisplayNames</dt>
@@ -80,6 +111,20 @@ import net.shibboleth.utilities.java.support.xml.ElementSupport;
  *   <dd>
  *      The {@link MessageFormat} format string used to compose new display names.
  *      By default, <code>"[{1}] {0}"</code>, resulting in names of the form "<code>[CODE] oldname</code>".
+ *      The format is compiled when the stage is initialized; format types such as
+ *      <code>{0,number}</code> are not supported.
+ *   </dd>
+ *
+ *   <dt>clashReport</dt>
+ *   <dd>
+ *      A {@link DisplayNameClashReport} to which each rewritten discovery name is written.
+ *      By default, <code>null</code>, meaning that rewrites are only recorded as item metadata.
+ *   </dd>
+ *
+ *   <dt>identificationStrategy</dt>
+ *   <dd>
+ *      The {@link ItemIdentificationStrategy} used to identify entities in the
+ *      <code>clashReport</code>. By default, a {@link FirstItemIdItemIdentificationStrategy}.
  *   </dd>
  * </dl>
  *   
@@ -87,14 +132,11 @@ import net.shibboleth.utilities.java.support.xml.ElementSupport;
  * @see <a href="https://repo.infr.ukfederation.org.uk/ukf/ukf-meta/-/issues/63">ukf/ukf-meta#63</a>
  */
 @ThreadSafe
-public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element> {
+public class IdPDisplayNameDuplicateAvoidingStage extends AbstractParallelStage<Element> {
 
     /** {@link QName} representing an SAML metadata <code>IDPSSODescriptor</code>. */
     private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
     
-    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
-    private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
-
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateAvoidingStage.class);
 
@@ -109,6 +151,17 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Nonnull @GuardedBy("this")
     private String registrationAuthority = "http://ukfederation.org.uk";
 
+    /**
+     * Registration authorities whose discovery names must be preserved, in priority order.
+     *
+     * <p>
+     * The default value is an empty list, meaning that only {@link #registrationAuthority}
+     * is protected.
+     * </p>
+     */
+    @Nonnull @NonnullElements @GuardedBy("this")
+    private List<String> protectedRegistrationAuthorities = Collections.emptyList();
+
     /**
      * Replacement display names for registration authorities.
      */
@@ -133,6 +186,37 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Nonnull @GuardedBy("this")
     private String nameFormat = "[{1}] {0}";
 
+    /**
+     * Report to which each rewritten discovery name is written.
+     *
+     * <p>
+     * Default value: <code>null</code>, meaning that rewrites are only recorded as item metadata.
+     * </p>
+     */
+    @Nullable @GuardedBy("this")
+    private DisplayNameClashReport clashReport;
+
+    /**
+     * Item identification strategy used to identify entities in the clash report.
+     *
+     * <p>
+     * Default value: {@link FirstItemIdItemIdentificationStrategy}.
+     * </p>
+     */
+    @Nonnull @GuardedBy("this")
+    private ItemIdentificationStrategy<Element> identificationStrategy = new FirstItemIdItemIdentificationStrategy<>();
+
+    /** The compiled form of {@link #nameFormat}, set when the stage is initialized. */
+    @Nullable @GuardedBy("this")
+    private DisplayNameTemplate nameTemplate;
+
+    /**
+     * Priority of each protected registration authority, highest first from 0, set
+     * when the stage is initialized.
+     */
+    @Nullable @GuardedBy("this")
+    private Map<String, Integer> priorities;
+
     /**
      * Get the registration authority.
      * 
@@ -154,6 +238,57 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
         registrationAuthority = newAuthority;
     }
 
+    /**
+     * Get the registration authorities whose discovery names must be preserved, in priority order.
+     *
+     * @return the protected registration authorities, or an empty list if only the
+     *      <code>registrationAuthority</code> is protected
+     */
+    @Nonnull @NonnullElements
+    public final synchronized List<String> getProtectedRegistrationAuthorities() {
+        return protectedRegistrationAuthorities;
+    }
+
+    /**
+     * Set the registration authorities whose discovery names must be preserved, in priority order.
+     *
+     * <p>
+     * If this is not empty, it takes the place of the <code>registrationAuthority</code> property.
+     * </p>
+     *
+     * @param authorities registration authority URIs, highest priority first
+     */
+    public final synchronized void setProtectedRegistrationAuthorities(
+            @Nonnull @NonnullElements final List<String> authorities) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        protectedRegistrationAuthorities =
+                ImmutableList.copyOf(Constraint.isNotNull(authorities, "authorities can not be null"));
+    }
+
+    /**
+     * Get the protected registration authorities in effect, in priority order.
+     *
+     * @return the protected registration authorities
+     */
+    @Nonnull @NonnullElements
+    private synchronized List<String> getEffectiveRegistrationAuthorities() {
+        if (protectedRegistrationAuthorities.isEmpty()) {
+            return Collections.singletonList(registrationAuthority);
+        }
+        return protectedRegistrationAuthorities;
+    }
+
+    /**
+     * Get the priority of each protected registration authority.
+     *
+     * @return map from registration authority to priority, highest first from 0
+     */
+    @Nonnull @NonnullElements
+    private synchronized Map<String, Integer> getPriorities() {
+        return priorities;
+    }
+
     /**
      * Returns the map of display names for registration authorities.
      * 
@@ -219,59 +354,57 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     }
 
     /**
-     * Return all elements with the given name within the given entity descriptor.
-     * 
-     * @param entity the {@link Element} representing the entity's <code>md:EntityDescriptor</code>
-     * @param qname the {@link QName} being searched for
-     * @return a {@link List} of {@link Element}s with the requested name
+     * Gets the report to which each rewritten discovery name is written.
+     *
+     * @return the {@link DisplayNameClashReport}, or <code>null</code> if none is in use
      */
-    @Nonnull @NonnullElements
-    private List<Element> extractElements(@Nonnull final Element entity,
-            @Nonnull final QName qname) {
-        final List<Element> names = new ArrayList<>();
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
-            names.add(element);
-        }
-        return names;
+    @Nullable public final synchronized DisplayNameClashReport getClashReport() {
+        return clashReport;
     }
 
     /**
-     * Return a list of {@link Element}s representing the entity's discovery names.
-     * 
-     * <p>This either collects the entity's <code>mdui:DisplayName</code> elements or,
-     * if there are none, any <code>md:OrganizationDisplayName</code> elements it has.
+     * Sets the report to which each rewritten discovery name is written.
+     *
+     * <p>
+     * The report is not initialized or destroyed by this stage.
+     * </p>
      *
-     * @param entity the {@link Element} representing the entity
-     * @return a {@link List} of {@link Element}s, possibly empty
+     * @param report the {@link DisplayNameClashReport}, or <code>null</code> for none
      */
-    @Nonnull @NonnullElements
-    private List<Element> extractDiscoveryNameElements(@Nonnull final Element entity) {
-        // Look at mdui:DisplayName first
-        final List<Element> mduiNames = extractElements(entity, MDUISupport.DISPLAYNAME_NAME);
-        if (!mduiNames.isEmpty()) {
-            return mduiNames;
-        }
+    public final synchronized void setClashReport(@Nullable final DisplayNameClashReport report) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        clashReport = report;
+    }
+
+    /**
+     * Gets the item identification strategy used to identify entities in the clash report.
+     *
+     * @return the {@link ItemIdentificationStrategy}
+     */
+    @Nonnull public final synchronized ItemIdentificationStrategy<Element> getIdentificationStrategy() {
+        return identificationStrategy;
+    }
 
-        // Otherwise, fall back to legacy md:OrganizationDisplayName elements
-        return extractElements(entity, MD_ORG_DISPLAY_NAME);
+    /**
+     * Sets the item identification strategy used to identify entities in the clash report.
+     *
+     * @param strategy the {@link ItemIdentificationStrategy} to use
+     */
+    public final synchronized void setIdentificationStrategy(
+            @Nonnull final ItemIdentificationStrategy<Element> strategy) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        identificationStrategy = Constraint.isNotNull(strategy, "identification strategy can not be null");
     }
 
     /**
-     * Extract the discovery names from a {@link List} of {@link Element}s by
-     * forming a new {@link List} from the trimmed text content.
+     * Get the compiled form of the name format.
      *
-     * @param elements {@link List} of {@link Element}s to extract names from
-     * @return a {@link List} of the corresponding names
+     * @return the compiled name template
      */
-    @Nonnull @NonnullElements private List<String> extractDiscoveryNames(
-            @Nonnull @NonnullElements final List<Element> elements) {
-        final List<String> names = new ArrayList<>();
-        for (final Element element : elements) {
-            names.add(element.getTextContent().trim());
-        }
-        return names;
+    private synchronized DisplayNameTemplate getNameTemplate() {
+        return nameTemplate;
     }
 
     /**
@@ -297,20 +430,21 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     }
 
     /**
-     * Separate a list of entities into two lists of identity providers, on the basis of
+     * Separate a list of entities into lists of identity providers, on the basis of
      * the registration authority associated with each.
      * 
      * <p>Non-entities, and non-IdPs, are ignored.</p>
      * 
      * @param items collection of items representing entities to process
-     * @param ourIdPs collection of identity providers registered by the given registration authority
+     * @param priorities priority of each protected registration authority, highest first from 0
+     * @param protectedIdPs for each protected registration authority in priority order,
+     *      the collection of identity providers it registered
      * @param otherIdPs collection of identity providers registered by any other registration authority
-     * @param ourRegAuth registration authority to make the distinction between the lists with
      */
     private void separateEntities(@Nonnull @NonnullElements final Collection<Item<Element>> items,
-            @Nonnull @NonnullElements final List<Item<Element>> ourIdPs,
-            @Nonnull @NonnullElements final List<Item<Element>> otherIdPs,
-            @Nonnull final String ourRegAuth) {
+            @Nonnull @NonnullElements final Map<String, Integer> priorities,
+            @Nonnull @NonnullElements final List<List<Item<Element>>> protectedIdPs,
+            @Nonnull @NonnullElements final List<Item<Element>> otherIdPs) {
         for (final Item<Element> item : items) {
             final Element entity = item.unwrap();
             final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
@@ -330,8 +464,9 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
 
             // Process only IdPs
             if (!ElementSupport.getChildElements(entity, MD_IDP_SSO_DESCRIPTOR).isEmpty()) {
-                if (regAuth.equals(ourRegAuth)) {
-                    ourIdPs.add(item);
+                final Integer priority = priorities.get(regAuth);
+                if (priority != null) {
+                    protectedIdPs.get(priority).add(item);
                 } else {
                     otherIdPs.add(item);
                 }
@@ -343,55 +478,243 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
+        avoid(items, DisplayNameIndex.find(items));
+    }
 
-        // Collect commonly used guarded fields.
-        final String ourRegAuth = getRegistrationAuthority();
+    /**
+     * Process the items, using a {@link DisplayNameIndex} if one has been built for them.
+     *
+     * The index supplies each entity's discovery name elements, and is told of each
+     * name which is rewritten.
+     *
+     * @param items the items to process
+     * @param index the {@link DisplayNameIndex} describing the items, or <code>null</code>
+     * @throws StageProcessingException if a discovery name is used by more than one entity
+     *      from the same protected registration authority
+     */
+    private void avoid(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nullable final DisplayNameIndex index) throws StageProcessingException {
 
-        // Collect two lists of IdPs: "ours" and "others"
-        final List<Item<Element>> ourIdPs = new ArrayList<>();
+        // Collect commonly used guarded fields.
+        final List<String> protectedRegAuths = getEffectiveRegistrationAuthorities();
+        final Map<String, Integer> priorities = getPriorities();
+        final DisplayNameClashReport report = getClashReport();
+        final ItemIdentificationStrategy<Element> strategy = getIdentificationStrategy();
+        final NameRewriter rewriter = new NameRewriter(getNameTemplate(), getRegistrationAuthorityDisplayNames(),
+                getDefaultRegistrationAuthorityDisplayName(), report, strategy, index);
+        final Function<Item<Element>, List<Element>> nameElementExtractor = index != null ? index::getNameElements :
+                item -> DisplayNameSupport.extractDiscoveryNameElements(item.unwrap());
+
+        // Collect lists of IdPs: one for each protected registration authority, and "others"
+        final List<List<Item<Element>>> protectedIdPs = new ArrayList<>(protectedRegAuths.size());
+        for (int priority = 0; priority < protectedRegAuths.size(); priority++) {
+            protectedIdPs.add(new ArrayList<>());
+        }
         final List<Item<Element>> otherIdPs = new ArrayList<>();
-        separateEntities(items, ourIdPs, otherIdPs, ourRegAuth);
-
-        // Collect discovery names used by "our" entities
-        final Set<String> ourNames = new HashSet<>();
-        for (final Item<Element> item : ourIdPs) {
-            final List<Element> discoveryNameElements = extractDiscoveryNameElements(item.unwrap());
-            final List<String> discoveryNames = extractDiscoveryNames(discoveryNameElements);
-            // None of these names should be in the collection already, although they MAY include duplicates
-            for (final String name : discoveryNames) {
-                // A clash between this entity and our other entities is fatal
-                if (ourNames.contains(name)) {
-                    throw new StageProcessingException("discovery name " + name +
-                            " appears in more than one entity from " + ourRegAuth);
+        separateEntities(items, priorities, protectedIdPs, otherIdPs);
+
+        DisplayNameClashReport.startReport(report);
+        try {
+            /*
+             * Index from each discovery name used by a protected entity to the first entity
+             * using it, and the priority of that entity's registration authority. Authorities
+             * are processed in priority order, so that a name owned by a higher priority
+             * authority is rewritten before it is added to the index. Each owner's identifier
+             * for the clash report is computed here, once, so that the parallel phase below
+             * only reads the protected entities.
+             */
+            final Map<String, NameOwner> owners = new HashMap<>();
+            final StringBuilder builder = new StringBuilder();
+            for (int priority = 0; priority < protectedIdPs.size(); priority++) {
+                final int thisPriority = priority;
+                for (final Item<Element> item : protectedIdPs.get(priority)) {
+                    final List<String> discoveryNames = rewriter.rewrite(item,
+                            nameElementExtractor.apply(item), name -> {
+                                final NameOwner owner = owners.get(name);
+                                return owner != null && owner.priority < thisPriority ? owner : null;
+                            }, builder);
+                    // None of these names should be owned by this authority already,
+                    // although they MAY include duplicates
+                    for (final String name : discoveryNames) {
+                        // A clash between this entity and other entities from the same authority is fatal
+                        final NameOwner owner = owners.get(name);
+                        if (owner != null && owner.priority == thisPriority) {
+                            throw new StageProcessingException("discovery name " + name +
+                                    " appears in more than one entity from " + protectedRegAuths.get(priority));
+                        }
+                    }
+                    // Add all of the new names to the index
+                    final NameOwner itemOwner = new NameOwner(thisPriority,
+                            report == null ? null : strategy.getItemIdentifier(item));
+                    for (final String name : discoveryNames) {
+                        owners.putIfAbsent(name, itemOwner);
+                    }
                 }
             }
-            // Add all of the new names to the collection
-            ourNames.addAll(discoveryNames);
+
+            // Now check the "other" IdPs to see if they need deconfliction
+            final Map<String, NameOwner> frozenOwners = ImmutableMap.copyOf(owners);
+            final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(StringBuilder::new);
+            forEachIndex(otherIdPs.size(), position -> {
+                final Item<Element> item = otherIdPs.get(position);
+                rewriter.rewrite(item, nameElementExtractor.apply(item), frozenOwners::get, builders.get());
+            });
+        } finally {
+            DisplayNameClashReport.finishReport(report);
+        }
+    }
+
+    /**
+     * The entity owning a discovery name used by a protected registration authority.
+     */
+    @Immutable
+    private static final class NameOwner {
+
+        /** The priority of the entity's registration authority. */
+        private final int priority;
+
+        /** The entity's identifier for the clash report, or <code>null</code> if there is no report. */
+        @Nullable private final String identifier;
+
+        /**
+         * Constructor.
+         *
+         * @param ownerPriority the priority of the entity's registration authority
+         * @param ownerIdentifier the entity's identifier for the clash report, or <code>null</code>
+         */
+        NameOwner(final int ownerPriority, @Nullable final String ownerIdentifier) {
+            priority = ownerPriority;
+            identifier = ownerIdentifier;
+        }
+    }
+
+    /**
+     * Rewrites the discovery names of an entity which clash with names owned by another
+     * registration authority.
+     *
+     * <p>
+     * Instances are created for each execution of the stage, and may be used by several
+     * threads at once.
+     * </p>
+     */
+    @ThreadSafe
+    private final class NameRewriter {
+
+        /** Template for new discovery names. */
+        @Nonnull private final DisplayNameTemplate template;
+
+        /** Display names for registration authorities. */
+        @Nonnull @NonnullElements private final Map<String, String> handles;
+
+        /** Display name for registration authorities not in {@link #handles}. */
+        @Nonnull private final String defaultHandle;
+
+        /** Report to which each rewrite is written, or <code>null</code>. */
+        @Nullable private final DisplayNameClashReport report;
+
+        /** Strategy used to identify entities in the report. */
+        @Nonnull private final ItemIdentificationStrategy<Element> strategy;
+
+        /** Index told of each rewritten name, or <code>null</code>. */
+        @Nullable private final DisplayNameIndex index;
+
+        /**
+         * Constructor.
+         *
+         * @param nameTemplate template for new discovery names
+         * @param registrationHandles display names for registration authorities
+         * @param defaultRegistrationHandle display name for other registration authorities
+         * @param clashReport report to which each rewrite is written, or <code>null</code>
+         * @param identificationStrategy strategy used to identify entities in the report
+         * @param displayNameIndex index told of each rewritten name, or <code>null</code>
+         */
+        NameRewriter(@Nonnull final DisplayNameTemplate nameTemplate,
+                @Nonnull @NonnullElements final Map<String, String> registrationHandles,
+                @Nonnull final String defaultRegistrationHandle,
+                @Nullable final DisplayNameClashReport clashReport,
+                @Nonnull final ItemIdentificationStrategy<Element> identificationStrategy,
+                @Nullable final DisplayNameIndex displayNameIndex) {
+            template = nameTemplate;
+            handles = registrationHandles;
+            defaultHandle = defaultRegistrationHandle;
+            report = clashReport;
+            strategy = identificationStrategy;
+            index = displayNameIndex;
         }
-        
-        // Now check the "other" IdPs to see if they need deconfliction
-        final MessageFormat newNameFormatter = new MessageFormat(getNameFormat());
-        for (final Item<Element> item : otherIdPs) {
-            final List<Element> discoveryNameElements = extractDiscoveryNameElements(item.unwrap());
-            for (final Element nameElement : discoveryNameElements) {
+
+        /**
+         * Rewrite an entity's clashing discovery names.
+         *
+         * @param item the {@link Item} representing the entity
+         * @param nameElements the entity's discovery name elements
+         * @param owners returns the owner of a discovery name which needs to be rewritten,
+         *      or <code>null</code> if the name can be kept
+         * @param newName {@link StringBuilder} to be reused for new names
+         * @return the entity's discovery names after any rewriting
+         */
+        @Nonnull @NonnullElements List<String> rewrite(@Nonnull final Item<Element> item,
+                @Nonnull @NonnullElements final List<Element> nameElements,
+                @Nonnull final Function<String, NameOwner> owners, @Nonnull final StringBuilder newName) {
+            final List<String> names = new ArrayList<>(nameElements.size());
+            String registrationHandle = null;
+            for (final Element nameElement : nameElements) {
                 final String name = nameElement.getTextContent().trim();
-                if (ourNames.contains(name)) {
+                final NameOwner owner = owners.apply(name);
+                if (owner != null) {
                     // Deconflict this name
-                    String registrationHandle =
-                            getRegistrationAuthorityDisplayNames().get(extractRegistrationAuthority(item));
                     if (registrationHandle == null) {
-                        registrationHandle = getDefaultRegistrationAuthorityDisplayName();
+                        registrationHandle = handles.getOrDefault(extractRegistrationAuthority(item), defaultHandle);
                     }
-                    final StringBuffer newName = newNameFormatter.format(
-                            new Object[] { name, registrationHandle },
-                            new StringBuffer(), null);
+                    newName.setLength(0);
+                    template.appendTo(newName, name, registrationHandle);
                     log.debug("discovery name changed from '{}' to '{}'", name, newName);
                     item.getItemMetadata().put(new InfoStatus(getId(),
                             "discovery name changed to '" + newName + "'"));
-                    nameElement.setTextContent(newName.toString());
+                    final String newNameString = newName.toString();
+                    nameElement.setTextContent(newNameString);
+                    names.add(newNameString);
+                    if (index != null) {
+                        index.rename(item, name, newNameString);
+                    }
+                    if (report != null) {
+                        report.record("renamed", name, strategy.getItemIdentifier(item),
+                                name, owner.identifier, newNameString);
+                    }
+                } else {
+                    names.add(name);
                 }
             }
+            return names;
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        clashReport = null;
+        nameTemplate = null;
+        priorities = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        try {
+            nameTemplate = DisplayNameTemplate.compile(nameFormat);
+        } catch (final IllegalArgumentException e) {
+            throw new ComponentInitializationException("invalid name format: " + nameFormat, e);
+        }
+
+        final Map<String, Integer> ranks = new HashMap<>();
+        for (final String authority : getEffectiveRegistrationAuthorities()) {
+            if (ranks.putIfAbsent(authority, ranks.size()) != null) {
+                throw new ComponentInitializationException("protected registration authority " + authority +
+                        " appears more than once");
+            }
         }
+        priorities = ranks;
     }
 
 }
@@ -14,13 +14,20 @@
 
 package uk.org.ukfederation.mda;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
@@ -28,35 +35,79 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemIdentificationStrategy;
 import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
 
 /**
  * A stage which, for each <code>EntityDescriptor</code> collection element representing an identity provider,
  * makes sure that the display name or names associated with the entity are not duplicates of any declared by
  * any other identity provider entity.
+ *
+ * <p>
+ * If an {@link ExecutorService} is supplied, display names are extracted from the items
+ * in parallel, and the first item in list order declaring each name is found using a
+ * concurrent index. Errors are then attached in a single sequential pass, so that they
+ * are identical to those produced in sequential mode.
+ * </p>
+ *
+ * <p>
+ * When executed by an {@link IdPDisplayNameDeconflictingStage}, the display names and the
+ * first item declaring each are taken from the {@link DisplayNameIndex} it has built, and
+ * no names are extracted by this stage.
+ * </p>
+ *
+ * <p>
+ * If a similarity threshold is set, display names which are not identical but are
+ * similar after normalisation (for example "University of Example" and
+ * "Example University", or names differing only in punctuation or diacritics) are
+ * also detected. Each entity involved in such a pair is given a {@link WarningStatus}
+ * including the similarity score. See {@link DisplayNameSimilarity} for details.
+ * </p>
+ *
+ * <p>
+ * Properties, in addition to the <code>executorService</code> and <code>chunkSize</code>
+ * inherited from {@link AbstractParallelStage}:
+ * </p>
+ *
+ * <dl>
+ *   <dt>identificationStrategy</dt>
+ *   <dd>
+ *      The {@link ItemIdentificationStrategy} used to describe clashing entities.
+ *      By default, a {@link FirstItemIdItemIdentificationStrategy}.
+ *   </dd>
+ *
+ *   <dt>clashReport</dt>
+ *   <dd>
+ *      A {@link DisplayNameClashReport} to which each clash is written as it is found.
+ *      By default, <code>null</code>, meaning that clashes are only recorded as item metadata.
+ *   </dd>
+ *
+ *   <dt>similarityThreshold</dt>
+ *   <dd>
+ *      The minimum similarity, between 0 and 1, at which two different display names
+ *      are reported as similar. By default, 0, meaning that similar names are not
+ *      looked for.
+ *   </dd>
+ * </dl>
  */
 @ThreadSafe
-public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element> {
+public class IdPDisplayNameDuplicateDetectingStage extends AbstractParallelStage<Element> {
 
     /** {@link QName} representing an SAML metadata <code>IDPSSODescriptor</code>. */
     private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
     
-    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
-    private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
-    
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateDetectingStage.class);
 
@@ -89,6 +140,71 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         identificationStrategy = strategy;
     }
     
+    /**
+     * Minimum similarity at which two different display names are reported.
+     *
+     * <p>
+     * Default value: 0, meaning that similar names are not looked for.
+     * </p>
+     */
+    @GuardedBy("this")
+    private double similarityThreshold;
+
+    /**
+     * Report to which each clash is written.
+     *
+     * <p>
+     * Default value: <code>null</code>, meaning that clashes are only recorded as item metadata.
+     * </p>
+     */
+    @Nullable @GuardedBy("this")
+    private DisplayNameClashReport clashReport;
+
+    /**
+     * Gets the minimum similarity at which two different display names are reported.
+     *
+     * @return the similarity threshold, or 0 if similar names are not looked for
+     */
+    public final synchronized double getSimilarityThreshold() {
+        return similarityThreshold;
+    }
+
+    /**
+     * Sets the minimum similarity at which two different display names are reported.
+     *
+     * @param threshold the similarity threshold, between 0 and 1; 0 disables the check
+     */
+    public final synchronized void setSimilarityThreshold(final double threshold) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(threshold >= 0.0 && threshold <= 1.0, "similarity threshold must be between 0 and 1");
+        similarityThreshold = threshold;
+    }
+
+    /**
+     * Gets the report to which each clash is written.
+     *
+     * @return the {@link DisplayNameClashReport}, or <code>null</code> if none is in use
+     */
+    @Nullable public final synchronized DisplayNameClashReport getClashReport() {
+        return clashReport;
+    }
+
+    /**
+     * Sets the report to which each clash is written.
+     *
+     * <p>
+     * The report is not initialized or destroyed by this stage.
+     * </p>
+     *
+     * @param report the {@link DisplayNameClashReport}, or <code>null</code> for none
+     */
+    public final synchronized void setClashReport(@Nullable final DisplayNameClashReport report) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        clashReport = report;
+    }
+
     /**
      * Determines whether the given <code>element</code> has at least one child named by <code>qname</code>.
      * 
@@ -111,22 +227,17 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
     }
     
     /**
-     * Collect the display names introduced by the given {@link QName} by the entity
-     * given by {@link Element} into the provided collection.
+     * Extract the set of display names from an entity's discovery name elements.
      * 
-     * @param entity <code>EntityDescriptor</code> to look for display names inside
-     * @param qname element name containing display names
-     * @param names collection of names to add into
+     * @param nameElements the entity's discovery name elements
+     * 
+     * @return set of display name strings
      */
-    private void collectNames(@Nonnull final Element entity,
-            @Nonnull final QName qname, @Nonnull final Set<String> names) {
-        assert entity != null;
-        assert qname != null;
-        assert names != null;
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
-            final String textContent = element.getTextContent();
+    @Nonnull private Set<String> extractDisplayNames(@Nonnull @NonnullElements final List<Element> nameElements) {
+        assert nameElements != null;
+        final Set<String> displayNames = new HashSet<>();
+        for (final Element nameElement : nameElements) {
+            final String textContent = nameElement.getTextContent();
             if (log.isTraceEnabled()) {
                 log.trace("seen display name '" + textContent + "'");
             }
@@ -135,30 +246,8 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
              * of a match without altering it fundamentally ("Example" and "Example "
              * should be regarded as a match).
              */
-            names.add(textContent.trim());
-        }
-    }
-    
-    /**
-     * Extract the set of display names used by this entity.
-     * 
-     * @param element the EntityDescriptor element to extract names from.
-     * 
-     * @return set of display name strings
-     */
-    @Nonnull private Set<String> extractDisplayNames(@Nonnull final Element element) {
-        assert element != null;
-        final Set<String> displayNames = new HashSet<>();
-
-        // Collect display names from any mdui:DisplayName elements present.
-        collectNames(element, MDUISupport.MDUI_DISPLAY_NAME, displayNames);
-
-        // Collect display names from md:OrganizationDisplayName elements only
-        // if there were no mdui:DisplayName elements.
-        if (displayNames.isEmpty()) {
-            collectNames(element, MD_ORG_DISPLAY_NAME, displayNames);
+            displayNames.add(textContent.trim());
         }
-
         return displayNames;
     }
     
@@ -192,30 +281,248 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         return new ErrorStatus(stageId, message);
     }
     
+    /**
+     * Report a clash between two items declaring the same display name.
+     *
+     * The item being processed is always labelled with an error; the item it clashes
+     * with is only labelled if it has not been labelled already.
+     *
+     * @param item the item being processed
+     * @param that the earlier item declaring the same display name
+     * @param name the display name which is clashing
+     * @param markedItems the items which have already been labelled with errors
+     */
+    private void reportClash(@Nonnull final Item<Element> item, @Nonnull final Item<Element> that,
+            @Nonnull final String name, @Nonnull final Set<Item<Element>> markedItems) {
+        final var strategy = getIdentificationStrategy();
+        final String thisId = strategy.getItemIdentifier(item);
+        final String thatId = strategy.getItemIdentifier(that);
+        
+        item.getItemMetadata().put(makeError(getId(), name, thisId, thatId));
+        markedItems.add(item);
+
+        final DisplayNameClashReport report = getClashReport();
+        if (report != null) {
+            report.record("duplicate", name, thisId, name, thatId, null);
+        }
+        
+        if (!markedItems.contains(that)) {
+            // only label each entity once
+            that.getItemMetadata().put(makeError(getId(), name, thatId, thisId));
+            markedItems.add(that);
+        }
+    }
+
+    /**
+     * Process the items in parallel.
+     *
+     * The display names for each identity provider are extracted in parallel, and each
+     * lower-cased name is entered into a concurrent index recording the lowest position
+     * at which it appears. This is the item which would have been recorded first by a
+     * sequential pass, so clashes can then be reported in list order with the same
+     * results as the sequential algorithm.
+     *
+     * @param items the items to process
+     * @return the display names of each item, or <code>null</code> for items which
+     *  are not identity providers
+     * @throws StageProcessingException if the parallel processing fails
+     */
+    @Nonnull private List<Set<String>> executeParallel(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final int count = items.size();
+        final List<Set<String>> names = new ArrayList<>(Collections.nCopies(count, null));
+        final boolean[] notEntity = new boolean[count];
+        final Map<String, Integer> first = new ConcurrentHashMap<>();
+
+        forEachIndex(count, index -> {
+            final Element entity = items.get(index).unwrap();
+            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+                notEntity[index] = true;
+            } else if (isIdentityProvider(entity)) {
+                final Set<String> displayNames =
+                        extractDisplayNames(DisplayNameSupport.extractDiscoveryNameElements(entity));
+                names.set(index, displayNames);
+                for (final String name : displayNames) {
+                    first.merge(name.toLowerCase(), index, Math::min);
+                }
+            }
+        });
+
+        final Set<Item<Element>> markedItems = new HashSet<>();
+        for (int index = 0; index < count; index++) {
+            final Item<Element> item = items.get(index);
+            if (notEntity[index]) {
+                // all items must be EntityDescriptor elements
+                item.getItemMetadata().put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
+            } else if (names.get(index) != null) {
+                for (final String name : names.get(index)) {
+                    final int thatIndex = first.get(name.toLowerCase());
+                    if (thatIndex != index) {
+                        reportClash(item, items.get(thatIndex), name, markedItems);
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Look for pairs of identity providers with similar, but not identical, display names,
+     * and label both entities of each pair with a warning.
+     *
+     * @param items the items being processed
+     * @param names the display names of each item, or <code>null</code> for items which
+     *  are not identity providers
+     * @param threshold the minimum similarity to report
+     */
+    private void detectSimilarNames(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final List<Set<String>> names, final double threshold) {
+
+        // Group the original names by their normalised form.
+        final Map<String, Integer> positions = new HashMap<>();
+        final List<String> normalisedNames = new ArrayList<>();
+        final List<List<Integer>> owners = new ArrayList<>();
+        final List<List<String>> originals = new ArrayList<>();
+        for (int index = 0; index < items.size(); index++) {
+            if (names.get(index) == null) {
+                continue;
+            }
+            for (final String name : names.get(index)) {
+                final String normalised = DisplayNameSimilarity.normalise(name);
+                if (normalised.isEmpty()) {
+                    continue;
+                }
+                Integer position = positions.get(normalised);
+                if (position == null) {
+                    position = normalisedNames.size();
+                    positions.put(normalised, position);
+                    normalisedNames.add(normalised);
+                    owners.add(new ArrayList<>());
+                    originals.add(new ArrayList<>());
+                }
+                owners.get(position).add(index);
+                originals.get(position).add(name);
+            }
+        }
+
+        // Names with the same normalised form are completely similar.
+        final List<DisplayNameSimilarity.Match> matches = new ArrayList<>();
+        for (int position = 0; position < normalisedNames.size(); position++) {
+            if (owners.get(position).size() > 1) {
+                matches.add(new DisplayNameSimilarity.Match(position, position, 1.0));
+            }
+        }
+        matches.addAll(DisplayNameSimilarity.findSimilar(normalisedNames, threshold));
+
+        final Set<Long> reported = new HashSet<>();
+        for (final DisplayNameSimilarity.Match match : matches) {
+            final List<Integer> firstOwners = owners.get(match.getFirst());
+            final List<Integer> secondOwners = owners.get(match.getSecond());
+            for (int a = 0; a < firstOwners.size(); a++) {
+                for (int b = 0; b < secondOwners.size(); b++) {
+                    final int thatIndex = firstOwners.get(a);
+                    final int thisIndex = secondOwners.get(b);
+                    final String thatName = originals.get(match.getFirst()).get(a);
+                    final String thisName = originals.get(match.getSecond()).get(b);
+                    if (thatIndex == thisIndex || thatName.equalsIgnoreCase(thisName)) {
+                        // the same entity, or an exact clash which has already been reported
+                        continue;
+                    }
+                    final long pair = ((long) Math.min(thatIndex, thisIndex) << 32) | Math.max(thatIndex, thisIndex);
+                    if (reported.add(pair)) {
+                        reportSimilarity(items.get(thisIndex), thisName, items.get(thatIndex), thatName,
+                                match.getSimilarity());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Label both entities of a pair having similar display names with a warning.
+     *
+     * @param item one item of the pair
+     * @param name the display name of that item
+     * @param that the other item of the pair
+     * @param thatName the display name of the other item
+     * @param similarity the similarity of the two names
+     */
+    private void reportSimilarity(@Nonnull final Item<Element> item, @Nonnull final String name,
+            @Nonnull final Item<Element> that, @Nonnull final String thatName, final double similarity) {
+        final var strategy = getIdentificationStrategy();
+        final String thisId = strategy.getItemIdentifier(item);
+        final String thatId = strategy.getItemIdentifier(that);
+        final String score = String.format(Locale.ROOT, "%.2f", similarity);
+        item.getItemMetadata().put(new WarningStatus(getId(), "display name '" + name + "' is similar to '" +
+                thatName + "' used by " + thatId + " (similarity " + score + ")"));
+        that.getItemMetadata().put(new WarningStatus(getId(), "display name '" + thatName + "' is similar to '" +
+                name + "' used by " + thisId + " (similarity " + score + ")"));
+
+        final DisplayNameClashReport report = getClashReport();
+        if (report != null) {
+            report.record("similar", name, thisId, thatName, thatId, score);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
 
+        final double threshold = getSimilarityThreshold();
+        final DisplayNameClashReport report = getClashReport();
+        DisplayNameClashReport.startReport(report);
+        try {
+            final DisplayNameIndex index = DisplayNameIndex.find(items);
+            final List<Set<String>> names;
+            if (index != null) {
+                names = executeIndexed(items, index);
+            } else if (getExecutorService() != null) {
+                names = executeParallel(items);
+            } else {
+                names = executeSequential(items);
+            }
+            if (threshold > 0.0) {
+                detectSimilarNames(items, names, threshold);
+            }
+        } finally {
+            DisplayNameClashReport.finishReport(report);
+        }
+    }
+
+    /**
+     * Process the items sequentially.
+     *
+     * @param items the items to process
+     * @return the display names of each item, or <code>null</code> for items which
+     *  are not identity providers
+     */
+    @Nonnull private List<Set<String>> executeSequential(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        /*
+         * Display names of each item.
+         */
+        final List<Set<String>> names = new ArrayList<>(items.size());
+
         /*
          * Record of the items corresponding to the first entity seen with each display name.
          */
         final Map<String, Item<Element>> ids = new HashMap<>(items.size());
-        
+
         /*
          * Remember which entities we have already marked with errors.
          */
         final Set<Item<Element>> markedItems = new HashSet<>();
-        
+
         for (final Item<Element> item : items) {
            final Element entity = item.unwrap();
            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
-           
+           Set<String> displayNames = null;
+
            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
                // all items must be EntityDescriptor elements
                metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
            } else if (isIdentityProvider(entity)) {
-               final Set<String> displayNames = extractDisplayNames(entity);
+               displayNames = extractDisplayNames(DisplayNameSupport.extractDiscoveryNameElements(entity));
                for (final String name: displayNames) {
                    final String key = name.toLowerCase();
                    final Item<Element> that = ids.get(key);
@@ -223,28 +530,57 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
                        // all is well
                        ids.put(key, item);
                    } else if (that != item) {
-                       final var strategy = getIdentificationStrategy();
-                       final String thisId = strategy.getItemIdentifier(item);
-                       final String thatId = strategy.getItemIdentifier(that);
-                       
-                       metadata.put(makeError(getId(), name, thisId, thatId));
-                       markedItems.add(item);
-                       
-                       if (!markedItems.contains(that)) {
-                           // only label each entity once
-                           that.getItemMetadata().put(makeError(getId(), name, thatId, thisId));
-                           markedItems.add(that);
-                       }
+                       reportClash(item, that, name, markedItems);
                    }
                }
            }
-           
+
+           names.add(displayNames);
+        }
+        return names;
+    }
+
+    /**
+     * Process the items using a {@link DisplayNameIndex} built for them.
+     *
+     * The index already records each identity provider's display names, including any
+     * rewritten by an earlier stage, and the first item in list order declaring each name,
+     * so errors can be attached in a single sequential pass without extracting any names.
+     *
+     * @param items the items to process
+     * @param index the {@link DisplayNameIndex} describing the items
+     * @return the display names of each item, or <code>null</code> for items which
+     *  are not identity providers
+     */
+    @Nonnull private List<Set<String>> executeIndexed(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final DisplayNameIndex index) {
+        final List<Set<String>> names = new ArrayList<>(items.size());
+        final Set<Item<Element>> markedItems = new HashSet<>();
+        for (int position = 0; position < items.size(); position++) {
+            final Item<Element> item = items.get(position);
+            final List<String> entityNames = index.getNames(position);
+            Set<String> displayNames = null;
+            if (!index.isEntity(position)) {
+                // all items must be EntityDescriptor elements
+                item.getItemMetadata().put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
+            } else if (entityNames != null) {
+                displayNames = new HashSet<>(entityNames);
+                for (final String name : displayNames) {
+                    final int thatPosition = index.getFirstOwner(name.toLowerCase());
+                    if (thatPosition != position) {
+                        reportClash(item, items.get(thatPosition), name, markedItems);
+                    }
+                }
+            }
+            names.add(displayNames);
         }
+        return names;
     }
     
     @Override
     protected void doDestroy() {
         identificationStrategy = null;
+        clashReport = null;
         super.doDestroy();
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.ItemOrderingStrategy;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import uk.org.ukfederation.mda.UKEntityOrderingStrategy.OrderableItem;
+
+/**
+ * Implements the same ordering as {@link UKEntityOrderingStrategy}, but is
+ * intended for collections made by concatenating sub-aggregates each of which
+ * is already in that order.
+ *
+ * The collection is split into its maximal ascending runs, which are then
+ * merged in a single pass. If the collection turns out to have more than a
+ * small number of runs, it is not usefully pre-sorted and is passed to
+ * {@link UKEntityOrderingStrategy} instead.
+ *
+ * Items which compare as equal appear in the result in the same relative
+ * order as in the original collection.
+ */
+@Immutable
+public class UKEntityMergingOrderingStrategy implements ItemOrderingStrategy<Element> {
+
+    /** Largest number of runs which will be merged rather than sorted. */
+    private static final int MAX_RUNS = 64;
+
+    /** Strategy used when the collection is not made up of a few sorted runs. */
+    @Nonnull private static final UKEntityOrderingStrategy SORTING_STRATEGY = new UKEntityOrderingStrategy();
+
+    /**
+     * Helper class tracking the merge position within a single run.
+     */
+    private static class RunCursor implements Comparable<RunCursor> {
+
+        /** The items in the run. */
+        private final List<OrderableItem> run;
+
+        /** Position of the run among all the runs, used to keep the merge stable. */
+        private final int runIndex;
+
+        /** Position of the next item in the run. */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param items the items in the run, which may not be empty
+         * @param index position of the run among all the runs
+         */
+        RunCursor(@Nonnull @NonnullElements final List<OrderableItem> items, final int index) {
+            run = items;
+            runIndex = index;
+        }
+
+        /**
+         * Gets the item at the head of the run.
+         *
+         * @return the item at the head of the run
+         */
+        @Nonnull OrderableItem head() {
+            return run.get(position);
+        }
+
+        /**
+         * Moves past the item at the head of the run.
+         *
+         * @return <code>true</code> if there are more items in the run
+         */
+        boolean advance() {
+            position++;
+            return position < run.size();
+        }
+
+        @Override
+        public int compareTo(@Nonnull final RunCursor o) {
+            final int compared = head().compareTo(o.head());
+            if (compared != 0) {
+                return compared;
+            }
+            return Integer.compare(runIndex, o.runIndex);
+        }
+    }
+
+    /**
+     * Merge a number of runs, each of which is already ordered.
+     *
+     * @param runs the runs to merge
+     * @param size the total number of items in the runs
+     * @return the merged items
+     */
+    @Nonnull @NonnullElements
+    private static List<Item<Element>> mergeRuns(@Nonnull @NonnullElements final List<List<OrderableItem>> runs,
+            final int size) {
+        final PriorityQueue<RunCursor> queue = new PriorityQueue<>(Math.max(1, runs.size()));
+        for (int index = 0; index < runs.size(); index++) {
+            if (!runs.get(index).isEmpty()) {
+                queue.add(new RunCursor(runs.get(index), index));
+            }
+        }
+
+        final List<Item<Element>> results = new ArrayList<>(size);
+        while (!queue.isEmpty()) {
+            final RunCursor cursor = queue.poll();
+            results.add(cursor.head().unwrap());
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merge a number of collections, each of which is already in the order
+     * established by {@link UKEntityOrderingStrategy}.
+     *
+     * No check is made that the collections are in fact ordered.
+     *
+     * @param runs the collections to merge
+     * @return the merged items
+     */
+    @Nonnull @NonnullElements
+    public List<Item<Element>> merge(@Nonnull @NonnullElements final List<List<Item<Element>>> runs) {
+        final List<List<OrderableItem>> orderableRuns = new ArrayList<>(runs.size());
+        int size = 0;
+        for (final List<Item<Element>> run : runs) {
+            final List<OrderableItem> orderableRun = new ArrayList<>(run.size());
+            for (final Item<Element> item : run) {
+                orderableRun.add(new OrderableItem(item));
+            }
+            orderableRuns.add(orderableRun);
+            size += run.size();
+        }
+        return mergeRuns(orderableRuns, size);
+    }
+
+    @Override
+    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+
+        // Split the collection into its maximal ascending runs.
+        final List<List<OrderableItem>> runs = new ArrayList<>();
+        List<OrderableItem> run = new ArrayList<>();
+        OrderableItem previous = null;
+        for (final Item<Element> item : items) {
+            final OrderableItem orderable = new OrderableItem(item);
+            if (previous != null && previous.compareTo(orderable) > 0) {
+                if (runs.size() == MAX_RUNS - 1) {
+                    return SORTING_STRATEGY.order(items);
+                }
+                runs.add(run);
+                run = new ArrayList<>();
+            }
+            run.add(orderable);
+            previous = orderable;
+        }
+        runs.add(run);
+
+        return mergeRuns(runs, items.size());
+    }
+
+}
@@ -15,6 +15,7 @@
 package uk.org.ukfederation.mda;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -42,6 +43,14 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElemen
  * Items with {@link ItemId} metadata come next, again in the natural ordering
  * for {@link ItemId}.  Items with neither {@link UKId} or {@link ItemId} come
  * last in the ordering.
+ *
+ * <p>
+ * Items with numeric {@link UKId}s make up the bulk of a typical aggregate, and
+ * are ordered by sorting an array of primitive <code>long</code> keys which pack
+ * the UK ID number together with the item's original position. String comparisons
+ * are only used for <code>EntitiesDescriptor</code>s, for items without a numeric
+ * {@link UKId}, and to break ties between items sharing a {@link UKId}.
+ * </p>
  */
 @Immutable
 public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
@@ -50,7 +59,7 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
      * Helper class which wraps an {@link Element} {@link Item} but extracts any
      * associated {@link UKId} and {@link ItemId} for simpler comparisons.
      */
-    private static class OrderableItem implements Comparable<OrderableItem> {
+    static class OrderableItem implements Comparable<OrderableItem> {
         
         /** Number of fields we are capable of comparing. */
         private static final int NFIELDS = 4;
@@ -140,8 +149,21 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
         }
     }
 
-    @Override
-    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+    /** Number of bits in a sort key given over to the item's original position. */
+    private static final int INDEX_BITS = 32;
+
+    /** Mask to extract the item's original position from a sort key. */
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /**
+     * Order a collection of items by wrapping each one in an {@link OrderableItem}
+     * and sorting those.
+     *
+     * @param items the items to order
+     * @return the ordered items
+     */
+    @Nonnull @NonnullElements
+    static List<Item<Element>> orderByComparison(@Nonnull @NonnullElements final List<Item<Element>> items) {
         
         // Construct an orderable list wrapping the original items.
         final List<OrderableItem> orderableList = new ArrayList<>(items.size());
@@ -161,4 +183,84 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
         return results;
     }
 
+    /**
+     * Add a run of items sharing the same {@link UKId} to the results.
+     *
+     * <p>
+     * Items within such a run are already in their original relative order, and
+     * are ordered further by comparison only if there is more than one of them.
+     * </p>
+     *
+     * @param run the items sharing a {@link UKId}
+     * @param results the list to add the items to
+     */
+    private static void addRun(@Nonnull @NonnullElements final List<Item<Element>> run,
+            @Nonnull @NonnullElements final List<Item<Element>> results) {
+        if (run.size() == 1) {
+            results.add(run.get(0));
+        } else {
+            results.addAll(orderByComparison(run));
+        }
+    }
+
+    @Override
+    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        
+        /*
+         * Partition the items into three groups which appear in this order in the result:
+         * EntitiesDescriptors, other items with numeric UK IDs, and everything else.
+         */
+        final List<Item<Element>> leading = new ArrayList<>();
+        final List<Item<Element>> trailing = new ArrayList<>();
+        final long[] keys = new long[items.size()];
+        int nkeys = 0;
+        for (int index = 0; index < items.size(); index++) {
+            final Item<Element> item = items.get(index);
+            if (SAMLMetadataSupport.isEntitiesDescriptor(item.unwrap())) {
+                leading.add(item);
+            } else {
+                final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
+                if (ukids.isEmpty()) {
+                    trailing.add(item);
+                } else if (ukids.get(0).isNumeric()) {
+                    keys[nkeys++] = ((long) ukids.get(0).getNumber() << INDEX_BITS) | index;
+                } else {
+                    /*
+                     * A non-numeric UK ID may sort between numeric ones, so
+                     * the partitioning does not hold. Fall back to ordering
+                     * everything by comparison.
+                     */
+                    return orderByComparison(items);
+                }
+            }
+        }
+
+        final List<Item<Element>> results = new ArrayList<>(items.size());
+        results.addAll(orderByComparison(leading));
+
+        /*
+         * Sort the keys for the items with numeric UK IDs. Because the original
+         * position is the low part of the key, items sharing a UK ID end up
+         * adjacent and in their original relative order.
+         */
+        Arrays.parallelSort(keys, 0, nkeys);
+        final List<Item<Element>> run = new ArrayList<>();
+        long runNumber = -1;
+        for (int k = 0; k < nkeys; k++) {
+            final long number = keys[k] >>> INDEX_BITS;
+            if (number != runNumber && !run.isEmpty()) {
+                addRun(run, results);
+                run.clear();
+            }
+            runNumber = number;
+            run.add(items.get((int) (keys[k] & INDEX_MASK)));
+        }
+        if (!run.isEmpty()) {
+            addRun(run, results);
+        }
+
+        results.addAll(orderByComparison(trailing));
+        return results;
+    }
+
 }
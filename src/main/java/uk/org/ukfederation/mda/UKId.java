@@ -14,22 +14,62 @@
 
 package uk.org.ukfederation.mda;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
-import com.google.common.base.Objects;
-
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
-/** Carries the fragment ID for an item of UK federation registered metadata. */
+/**
+ * Carries the fragment ID for an item of UK federation registered metadata.
+ *
+ * <p>
+ * Identifiers of the usual form, <code>uk</code> followed by exactly six decimal digits,
+ * are held as their numeric value; the string form is only created if {@link #getId()}
+ * is called. Canonical instances for such identifiers are available from
+ * {@link #valueOf(int)} and {@link #valueOf(String)}. Other identifiers are held as
+ * strings, as before.
+ * </p>
+ *
+ * <p>
+ * Ordering is by the string form of the identifier in all cases; for two numeric
+ * identifiers this is the same as ordering by numeric value, which is used instead.
+ * </p>
+ */
 @Immutable
 public class UKId implements ItemMetadata, Comparable<UKId> {
 
-    /** UK federation fragment ID for the Item. */
-    private String id;
+    /** Number of distinct numeric UK federation identifiers. */
+    public static final int ID_SPACE = 1000000;
+
+    /** Number of characters in a numeric UK federation identifier. */
+    private static final int ID_LENGTH = 8;
+
+    /** Number of canonical instances held in each page of the cache. */
+    private static final int PAGE_SIZE = 1000;
+
+    /** Canonical instances for numeric identifiers, in pages allocated on first use. */
+    @Nonnull
+    private static final AtomicReferenceArray<AtomicReferenceArray<UKId>> CACHE =
+            new AtomicReferenceArray<>(ID_SPACE / PAGE_SIZE);
+
+    /** Numeric value of the identifier, or <code>-1</code> if it is not of the usual form. */
+    private final int number;
+
+    /**
+     * UK federation fragment ID for the Item.
+     *
+     * <p>
+     * For numeric identifiers, this is computed on first use. The race between threads
+     * doing so is benign, as they will all compute equal immutable values.
+     * </p>
+     */
+    @Nullable private String id;
 
     /**
      * Constructor.
@@ -38,6 +78,79 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
      */
     public UKId(@Nonnull @NotEmpty final String ukid) {
         id = Constraint.isNotNull(StringSupport.trimOrNull(ukid), "UK ID may not be null or empty");
+        number = parseNumber(id);
+    }
+
+    /**
+     * Constructor for a numeric identifier.
+     *
+     * @param value numeric value of the identifier
+     */
+    private UKId(final int value) {
+        number = value;
+    }
+
+    /**
+     * Decodes a UK federation identifier to its numeric value.
+     *
+     * <p>
+     * This is equivalent to matching against <code>^uk[0-9]{6}$</code>, but
+     * does not allocate.
+     * </p>
+     *
+     * @param ukid candidate identifier
+     * @return the identifier's numeric value, or <code>-1</code> if the value is not
+     *      of the usual form
+     */
+    public static int parseNumber(@Nullable final String ukid) {
+        if (ukid == null || ukid.length() != ID_LENGTH || ukid.charAt(0) != 'u' || ukid.charAt(1) != 'k') {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 2; i < ID_LENGTH; i++) {
+            final int digit = ukid.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the canonical instance for a numeric identifier.
+     *
+     * @param value numeric value of the identifier, between 0 and 999999
+     * @return the canonical {@link UKId} for the identifier
+     */
+    @Nonnull public static UKId valueOf(final int value) {
+        Constraint.isTrue(value >= 0 && value < ID_SPACE, "UK ID number out of range");
+        final int pageIndex = value / PAGE_SIZE;
+        AtomicReferenceArray<UKId> page = CACHE.get(pageIndex);
+        if (page == null) {
+            CACHE.compareAndSet(pageIndex, null, new AtomicReferenceArray<>(PAGE_SIZE));
+            page = CACHE.get(pageIndex);
+        }
+        final int slot = value % PAGE_SIZE;
+        final UKId existing = page.get(slot);
+        if (existing != null) {
+            return existing;
+        }
+        page.compareAndSet(slot, null, new UKId(value));
+        return page.get(slot);
+    }
+
+    /**
+     * Returns a {@link UKId} for an identifier, using the canonical instance if the identifier
+     * is of the usual form.
+     *
+     * @param ukid The UK federation fragment ID for the entity, never null
+     * @return a {@link UKId} for the identifier
+     */
+    @Nonnull public static UKId valueOf(@Nonnull @NotEmpty final String ukid) {
+        final String trimmed = Constraint.isNotNull(StringSupport.trimOrNull(ukid), "UK ID may not be null or empty");
+        final int value = parseNumber(trimmed);
+        return value < 0 ? new UKId(trimmed) : valueOf(value);
     }
 
     /**
@@ -46,12 +159,43 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
      * @return unique identifier for the data carried by the Item
      */
     @Nonnull public String getId() {
-        return id;
+        String result = id;
+        if (result == null) {
+            final char[] chars = new char[ID_LENGTH];
+            chars[0] = 'u';
+            chars[1] = 'k';
+            int value = number;
+            for (int i = ID_LENGTH - 1; i >= 2; i--) {
+                chars[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            result = new String(chars);
+            id = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the numeric value of the identifier.
+     *
+     * @return the numeric value, or <code>-1</code> if the identifier is not of the usual form
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Indicates whether the identifier is of the usual form, and has a numeric value.
+     *
+     * @return <code>true</code> if the identifier has a numeric value
+     */
+    public boolean isNumeric() {
+        return number >= 0;
     }
 
     @Override
     public int hashCode() {
-        return id.hashCode();
+        return number >= 0 ? number : getId().hashCode();
     }
 
     @Override
@@ -67,11 +211,17 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
         }
 
         final UKId other = (UKId) obj;
-        return Objects.equal(id, other.id);
+        if (number >= 0 || other.number >= 0) {
+            return number == other.number;
+        }
+        return getId().equals(other.getId());
     }
 
     @Override
     public int compareTo(final UKId other) {
+        if (number >= 0 && other.number >= 0) {
+            return Integer.compare(number, other.number);
+        }
         return getId().compareTo(other.getId());
     }
     
@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A persistent registry recording, for each numeric UK federation identifier, the
+ * <code>entityID</code> it was first seen with and the date on which that happened.
+ *
+ * <p>
+ * The registry is held in a single file. A fixed-size table with one slot for each of the
+ * 1,000,000 possible identifiers is memory-mapped, so that each lookup is a constant-time
+ * access to the slot for the identifier's numeric value. The <code>entityID</code>s themselves
+ * are appended to a heap following the table, and are only read back when reporting a
+ * mismatch; the history is never loaded into the Java heap.
+ * </p>
+ *
+ * <p>
+ * Each slot holds a 64-bit hash of the UTF-8 encoding of the <code>entityID</code>, the
+ * offset and length of that encoding in the heap, and the first-seen date as an epoch day.
+ * An <code>entityID</code> is taken to match the recorded one if both hash and length match.
+ * </p>
+ *
+ * <p>
+ * The registry holds an exclusive lock on the file from initialization until it is destroyed,
+ * so that two registries, in this or another process, can not update the same file at once.
+ * Initialization fails, rather than waiting, if another registry already holds the lock.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>file</dt>
+ *   <dd>
+ *      The {@link File} holding the registry. Required. The file is created if it does not exist.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class UKIdRegistry extends AbstractInitializableComponent {
+
+    /** Magic number identifying a registry file: "UKIDREG1". */
+    private static final long MAGIC = 0x554B494452454731L;
+
+    /** Size of the file header, in bytes. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Offset within the header of the current end of the heap. */
+    private static final int HEAP_END_OFFSET = 8;
+
+    /** Size of each slot, in bytes. */
+    private static final int SLOT_SIZE = 24;
+
+    /** Offset within a slot of the <code>entityID</code> hash. */
+    private static final int HASH_OFFSET = 0;
+
+    /** Offset within a slot of the heap offset of the <code>entityID</code>. */
+    private static final int DATA_OFFSET = 8;
+
+    /** Offset within a slot of the length of the <code>entityID</code>. */
+    private static final int LENGTH_OFFSET = 16;
+
+    /** Offset within a slot of the first-seen epoch day. */
+    private static final int FIRST_SEEN_OFFSET = 20;
+
+    /** Offset within the file of the start of the heap. */
+    private static final long HEAP_START = HEADER_SIZE + (long) SLOT_SIZE * UKId.ID_SPACE;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(UKIdRegistry.class);
+
+    /** The file holding the registry. */
+    @Nullable @GuardedBy("this")
+    private File file;
+
+    /** Clock used to determine the first-seen date of new registrations. */
+    @Nonnull @GuardedBy("this")
+    private Clock clock = Clock.systemUTC();
+
+    /** The open registry file. */
+    @Nullable @GuardedBy("this")
+    private RandomAccessFile randomAccessFile;
+
+    /** Channel for the open registry file, used to access the heap. */
+    @Nullable @GuardedBy("this")
+    private FileChannel channel;
+
+    /** Exclusive lock held on the open registry file. */
+    @Nullable @GuardedBy("this")
+    private FileLock lock;
+
+    /** Mapping of the header and slot table. */
+    @Nullable @GuardedBy("this")
+    private MappedByteBuffer table;
+
+    /**
+     * Gets the file holding the registry.
+     *
+     * @return the file holding the registry
+     */
+    @Nullable public final synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the file holding the registry.
+     *
+     * @param newFile the file holding the registry
+     */
+    public final synchronized void setFile(@Nonnull final File newFile) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = Constraint.isNotNull(newFile, "file can not be null");
+    }
+
+    /**
+     * Gets the clock used to determine the first-seen date of new registrations.
+     *
+     * @return the clock
+     */
+    @Nonnull public final synchronized Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the clock used to determine the first-seen date of new registrations.
+     *
+     * <p>
+     * By default, the system clock in UTC.
+     * </p>
+     *
+     * @param newClock the clock
+     */
+    public final synchronized void setClock(@Nonnull final Clock newClock) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        clock = Constraint.isNotNull(newClock, "clock can not be null");
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a byte array.
+     *
+     * @param bytes the bytes to hash
+     * @return the hash value
+     */
+    private static long hash(@Nonnull final byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Returns the offset within the file of the slot for an identifier.
+     *
+     * @param number numeric value of the identifier
+     * @return offset of the identifier's slot
+     */
+    private static int slot(final int number) {
+        Constraint.isTrue(number >= 0 && number < UKId.ID_SPACE, "UK ID number out of range");
+        return HEADER_SIZE + SLOT_SIZE * number;
+    }
+
+    /**
+     * Registers an identifier as being used by an entity.
+     *
+     * <p>
+     * If the identifier has not been seen before, it is recorded against the entity with
+     * today's date. If it has been seen before with the same <code>entityID</code>, nothing
+     * changes. If it has been seen before with a different <code>entityID</code>, the
+     * registry is not changed, so that the reuse continues to be reported until it is
+     * resolved.
+     * </p>
+     *
+     * @param number numeric value of the identifier
+     * @param entityID the entity's <code>entityID</code>
+     * @return <code>null</code> if the registration is consistent with the registry, or the
+     *      <code>entityID</code> previously recorded for the identifier if it differs
+     * @throws IOException if the registry file can not be read or written
+     */
+    @Nullable public synchronized String register(final int number, @Nonnull final String entityID)
+            throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        final byte[] bytes = entityID.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(bytes);
+        final int slot = slot(number);
+        final long dataOffset = table.getLong(slot + DATA_OFFSET);
+
+        if (dataOffset == 0) {
+            // first sighting: append the entityID to the heap, then fill in the slot
+            final long heapEnd = table.getLong(HEAP_END_OFFSET);
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = heapEnd;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            table.putLong(slot + HASH_OFFSET, hash);
+            table.putInt(slot + LENGTH_OFFSET, bytes.length);
+            table.putInt(slot + FIRST_SEEN_OFFSET, (int) LocalDate.now(clock).toEpochDay());
+            table.putLong(slot + DATA_OFFSET, heapEnd);
+            table.putLong(HEAP_END_OFFSET, position);
+            return null;
+        }
+
+        if (table.getLong(slot + HASH_OFFSET) == hash && table.getInt(slot + LENGTH_OFFSET) == bytes.length) {
+            return null;
+        }
+        return readEntityID(slot);
+    }
+
+    /**
+     * Gets the <code>entityID</code> recorded for an identifier.
+     *
+     * @param number numeric value of the identifier
+     * @return the recorded <code>entityID</code>, or <code>null</code> if the identifier has not been seen
+     * @throws IOException if the registry file can not be read
+     */
+    @Nullable public synchronized String getEntityID(final int number) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        final int slot = slot(number);
+        if (table.getLong(slot + DATA_OFFSET) == 0) {
+            return null;
+        }
+        return readEntityID(slot);
+    }
+
+    /**
+     * Gets the date on which an identifier was first seen.
+     *
+     * @param number numeric value of the identifier
+     * @return the first-seen date, or <code>null</code> if the identifier has not been seen
+     */
+    @Nullable public synchronized LocalDate getFirstSeen(final int number) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        final int slot = slot(number);
+        if (table.getLong(slot + DATA_OFFSET) == 0) {
+            return null;
+        }
+        return LocalDate.ofEpochDay(table.getInt(slot + FIRST_SEEN_OFFSET));
+    }
+
+    /**
+     * Read the <code>entityID</code> recorded in a slot from the heap.
+     *
+     * @param slot offset of the slot
+     * @return the recorded <code>entityID</code>
+     * @throws IOException if the registry file can not be read
+     */
+    @Nonnull private String readEntityID(final int slot) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(table.getInt(slot + LENGTH_OFFSET));
+        long position = table.getLong(slot + DATA_OFFSET);
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("registry file " + file + " is truncated");
+            }
+            position += read;
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flush any changes to the registry to the underlying storage.
+     *
+     * @throws IOException if the changes can not be written
+     */
+    public synchronized void flush() throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        channel.force(false);
+        table.force();
+    }
+
+    /** Close the registry file, if it is open, after flushing any changes and releasing the lock. */
+    private void close() {
+        try {
+            if (table != null) {
+                channel.force(false);
+                table.force();
+            }
+            if (lock != null) {
+                lock.release();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (final IOException e) {
+            log.warn("error closing UK ID registry {}: {}", file, e.getMessage());
+        }
+        table = null;
+        lock = null;
+        channel = null;
+        randomAccessFile = null;
+    }
+
+    @Override
+    protected void doDestroy() {
+        close();
+        file = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (file == null) {
+            throw new ComponentInitializationException("registry file must be provided");
+        }
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            try {
+                lock = channel.tryLock();
+            } catch (final OverlappingFileLockException e) {
+                // already locked by another registry in this JVM
+                lock = null;
+            }
+            if (lock == null) {
+                close();
+                throw new ComponentInitializationException("registry file " + file + " is in use");
+            }
+            final boolean created = channel.size() == 0;
+            if (created) {
+                // leaves the slot table sparse and zero-filled on most file systems
+                randomAccessFile.setLength(HEAP_START);
+            } else if (channel.size() < HEAP_START) {
+                close();
+                throw new ComponentInitializationException("registry file " + file + " is truncated");
+            }
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEAP_START);
+            if (created) {
+                table.putLong(0, MAGIC);
+                table.putLong(HEAP_END_OFFSET, HEAP_START);
+            } else if (table.getLong(0) != MAGIC) {
+                close();
+                throw new ComponentInitializationException("file " + file + " is not a UK ID registry");
+            }
+        } catch (final IOException e) {
+            close();
+            throw new ComponentInitializationException("could not open registry file " + file, e);
+        }
+    }
+
+}
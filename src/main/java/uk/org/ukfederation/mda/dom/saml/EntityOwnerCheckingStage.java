@@ -15,8 +15,10 @@
 package uk.org.ukfederation.mda.dom.saml;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
@@ -27,32 +29,84 @@ import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
-import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
 import net.shibboleth.utilities.java.support.xml.ElementSupport;
 import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
 import uk.org.ukfederation.members.Members;
 import uk.org.ukfederation.members.jaxb.MemberElement;
 
 /**
  * Stage to check that each entity in a collection is owned by a UK federation member.
+ *
+ * <p>
+ * Owners are looked up through a {@link MembersSnapshot}, so that checking each entity
+ * needs neither locking nor a fresh search of the members API object. The snapshot is
+ * either created from the <code>members</code> property when the stage is initialized,
+ * or taken from the <code>membersProvider</code> at the start of each execution, so
+ * that changes to members.xml are picked up without restarting.
+ * </p>
+ *
+ * <p>
+ * If an {@link ExecutorService} is supplied, entities are checked in parallel. Errors are
+ * always attached to the items in a single sequential pass, so the result is the same as
+ * in sequential mode.
+ * </p>
+ *
+ * <p>
+ * Properties, in addition to the <code>executorService</code> and <code>chunkSize</code>
+ * inherited from {@link AbstractParallelStage}:
+ * </p>
+ *
+ * <dl>
+ *   <dt>members</dt>
+ *   <dd>
+ *      The {@link Members} API object.
+ *      Exactly one of <code>members</code> and <code>membersProvider</code> is required.
+ *   </dd>
+ *
+ *   <dt>membersProvider</dt>
+ *   <dd>
+ *      The {@link MembersProvider} supplying the current members snapshot.
+ *   </dd>
+ * </dl>
  */
 @ThreadSafe
-public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
+public class EntityOwnerCheckingStage extends AbstractParallelStage<Element> {
+
+    /** QName of the <code>Organization</code> element. */
+    private static final QName ORGANIZATION = new QName(SAMLMetadataSupport.MD_NS, "Organization");
+
+    /** QName of the <code>OrganizationName</code> element. */
+    private static final QName ORGANIZATION_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationName");
 
     /** Information about members of the UK federation. */
-    @GuardedBy("this") @NonnullAfterInit private Members members;
+    @GuardedBy("this") @Nullable private Members members;
+
+    /** Provider of snapshots of information about members of the UK federation. */
+    @GuardedBy("this") @Nullable private MembersProvider membersProvider;
+
+    /**
+     * Snapshot of {@link #members} used while processing entities, if no
+     * {@link #membersProvider} is used.
+     *
+     * <p>
+     * This is set once, when the stage is initialized, and is read without locking.
+     * </p>
+     */
+    @Nullable private volatile MembersSnapshot snapshot;
     
     /**
      * Get the members API object.
      *
      * @return the members API object
      */
-    @NonnullAfterInit
+    @Nullable
     public final synchronized Members getMembers() {
         return members;
     }
@@ -66,70 +120,116 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
         members = m;
     }
     
+    /**
+     * Get the provider of members snapshots.
+     *
+     * @return the members provider
+     */
+    @Nullable
+    public final synchronized MembersProvider getMembersProvider() {
+        return membersProvider;
+    }
+
+    /**
+     * Set the provider of members snapshots to use.
+     *
+     * @param provider the members provider to use
+     */
+    public final synchronized void setMembersProvider(@Nonnull final MembersProvider provider) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        membersProvider = provider;
+    }
+
+    /**
+     * Get the members snapshot to use for an execution of the stage.
+     *
+     * @return the current members snapshot
+     */
+    @Nonnull private MembersSnapshot currentSnapshot() {
+        final MembersSnapshot fixed = snapshot;
+        return fixed != null ? fixed : getMembersProvider().getSnapshot();
+    }
+
     @Override
-    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
-        doExecute(item.unwrap(), item.getItemMetadata());
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        // use the same snapshot for the whole collection
+        final MembersSnapshot current = currentSnapshot();
+        final int count = items.size();
+
+        // Phase 1: check the entities, possibly in parallel
+        final String[] errors = new String[count];
+        forEachIndex(count,
+                index -> errors[index] = checkEntity(items.get(index).unwrap(), current));
+
+        // Phase 2: attach the errors in list order
+        for (int index = 0; index < count; index++) {
+            if (errors[index] != null) {
+                addError(items.get(index).getItemMetadata(), errors[index]);
+            }
+        }
     }
-    
+
     /**
-     * Process a single entity.
+     * Check a single entity against a given members snapshot.
+     *
+     * <p>
+     * This only reads the entity and the snapshot, so it can be called for several entities
+     * in parallel.
+     * </p>
      * 
      * @param entity DOM {@link Element} containing the <code>EntityDescriptor</code>
-     * @param metadata item metadata collection for the entity
+     * @param membersSnapshot the members snapshot to check the entity against
+     * @return a message describing the error found, or <code>null</code> if there is none
      */
-    protected void doExecute(@Nonnull final Element entity,
-            @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata) {
+    @Nullable private String checkEntity(@Nonnull final Element entity,
+            @Nonnull final MembersSnapshot membersSnapshot) {
         // Verify that we're dealing with an entity descriptor.
         if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
-            metadata.put(new ErrorStatus(getId(), "item is not an EntityDescriptor"));
-            return;
+            return "item is not an EntityDescriptor";
         }
         
         // Acquire its UK federation organization ID
         final Element ukfMemberLabel =
                 SAMLMetadataSupport.getDescriptorExtension(entity, UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME);
         if (ukfMemberLabel == null) {
-            addError(metadata, "entity has no " +
-                    UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME.getLocalPart() + " element");
-            return;
+            return "entity has no " +
+                    UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME.getLocalPart() + " element";
         }
         final String orgID = AttributeSupport.getAttributeValue(ukfMemberLabel,
                 UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID);
         if (orgID == null) {
-            addError(metadata, "entity's " +
+            return "entity's " +
                     UKFedLabelSupport.UK_FEDERATION_MEMBER_NAME.getLocalPart() +
                     " element has no " +
-                    UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID + " attribute");
-            return;
+                    UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID + " attribute";
         }
 
         // Acquire the Organization element.
-        final Element orgElement = ElementSupport.getFirstChildElement(entity,
-                new QName(SAMLMetadataSupport.MD_NS, "Organization"));
+        final Element orgElement = ElementSupport.getFirstChildElement(entity, ORGANIZATION);
         if (orgElement == null) {
-            addError(metadata, "entity has no Organization element");
-            return;
+            return "entity has no Organization element";
         }
         
         // Extract the organization's name.
         final String orgName = extractOrganizationName(orgElement);
         if (orgName == null) {
-            addError(metadata, "entity has no OrganizationName with xml:lang='en'");
-            return;
+            return "entity has no OrganizationName with xml:lang='en'";
         }
         
         // Check that this is a valid organization name
-        final MemberElement member = getMembers().getMemberByName(orgName);
+        final MemberElement member = membersSnapshot.getMemberByName(orgName);
         if (member == null) {
-            addError(metadata, "unknown owner name: " + orgName);
-            return;
+            return "unknown owner name: " + orgName;
         }
 
         // Cross-check the entity's orgID against the value from members.xml.
         if (!orgID.equals(member.getID())) {
-            addError(metadata, "mismatched orgID: " + orgID + " should be " + member.getID());
-            return;
+            return "mismatched orgID: " + orgID + " should be " + member.getID();
         }
+
+        return null;
     }
     
     /**
@@ -137,35 +237,17 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
      * organization owning the entity.
      * 
      * This will be the text content of the &lt;OrganizationName&lt; child element
-     * whose <code>xml:lang</code> attribute contains "en".
+     * whose <code>xml:lang</code> attribute contains "en", as located by
+     * {@link SAMLSupport#findEnglishChild(Element, QName)}.
      * 
      * @param orgElement the entity's &lt;Organization&gt; element
      * 
      * @return the organization's name, or <code>null</code> if not present
      */
     private String extractOrganizationName(@Nonnull final Element orgElement) {
-        // Acquire all of the OrganizationName elements
-        final List<Element> orgNames = ElementSupport.getChildElements(orgElement,
-                new QName(SAMLMetadataSupport.MD_NS, "OrganizationName"));
-        
-        // Extract the first one with xml:lang = "en"
-        for (final Element orgName : orgNames) {
-            final String lang = AttributeSupport.getXMLLang(orgName);
-            if ("en".equals(lang)) {
-                return orgName.getTextContent();
-            }
-        }
-        
-        // Perhaps there is a country-specific variant instead.
-        for (final Element orgName : orgNames) {
-            final String lang = AttributeSupport.getXMLLang(orgName);
-            if (lang != null && lang.startsWith("en-")) {
-                return orgName.getTextContent();
-            }
-        }
-        
-        // No xml:lang="en" found.
-        return null;
+        // Prefer xml:lang = "en", but accept a country-specific variant instead.
+        final Element orgName = SAMLSupport.findEnglishChild(orgElement, ORGANIZATION_NAME);
+        return orgName == null ? null : orgName.getTextContent();
     }
 
     /**
@@ -182,6 +264,8 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
     @Override
     protected void doDestroy() {
         members = null;
+        membersProvider = null;
+        snapshot = null;
 
         super.doDestroy();
     }
@@ -190,9 +274,12 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
 
-        if (members == null) {
+        if ((members == null) == (membersProvider == null)) {
             throw new ComponentInitializationException(
-                    "members API object must be provided");
+                    "exactly one of members API object and members provider must be provided");
+        }
+        if (members != null) {
+            snapshot = new MembersSnapshot(members);
         }
     }
 }
@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import uk.org.ukfederation.members.Members;
+
+/**
+ * Provides a {@link MembersSnapshot} for a members.xml file, replacing it whenever the
+ * file changes.
+ *
+ * <p>
+ * The file is parsed when the provider is initialized. After that, a background thread
+ * watches the file's directory using a {@link WatchService}; when the file is created or
+ * modified it is parsed again, and a new snapshot is published. Stages using the provider
+ * pick up the new snapshot on their next execution; an execution already in progress
+ * carries on with the snapshot it started with.
+ * </p>
+ *
+ * <p>
+ * If the changed file can not be parsed, for example because it is only partly written,
+ * a warning is logged and the previous snapshot remains in use until the file changes
+ * again.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>file</dt>
+ *   <dd>
+ *      The members.xml {@link File}. Required.
+ *   </dd>
+ *
+ *   <dt>parserPool</dt>
+ *   <dd>
+ *      The {@link ParserPool} used to parse the file. Required.
+ *   </dd>
+ *
+ *   <dt>watching</dt>
+ *   <dd>
+ *      Whether to watch the file for changes. By default, <code>true</code>. If
+ *      <code>false</code>, the file is parsed only when the provider is initialized.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class MembersProvider extends AbstractInitializableComponent {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MembersProvider.class);
+
+    /** The members.xml file. */
+    @NonnullAfterInit @GuardedBy("this")
+    private File file;
+
+    /** The parser pool used to parse the file. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ParserPool parserPool;
+
+    /** Whether to watch the file for changes. */
+    @GuardedBy("this")
+    private boolean watching = true;
+
+    /** The current snapshot, read without locking. */
+    @NonnullAfterInit
+    private volatile MembersSnapshot snapshot;
+
+    /**
+     * Lock held while the file is being loaded, so that snapshots are published in order,
+     * and while the provider is being destroyed.
+     *
+     * <p>
+     * Code holding this lock must not call synchronized methods of the provider, because
+     * {@link #destroy()} takes this lock while holding the provider's own lock.
+     * </p>
+     */
+    @Nonnull
+    private final Object loadLock = new Object();
+
+    /** The service watching the file's directory, or <code>null</code> if not watching. */
+    @Nullable @GuardedBy("loadLock")
+    private WatchService watchService;
+
+    /** The thread watching the file's directory, or <code>null</code> if not watching. */
+    @Nullable @GuardedBy("this")
+    private Thread watcher;
+
+    /**
+     * Gets the members.xml file.
+     *
+     * @return the file
+     */
+    @NonnullAfterInit public final synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the members.xml file.
+     *
+     * @param newFile the file
+     */
+    public final synchronized void setFile(@Nonnull final File newFile) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = newFile;
+    }
+
+    /**
+     * Gets the parser pool used to parse the file.
+     *
+     * @return the parser pool
+     */
+    @NonnullAfterInit public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Sets the parser pool used to parse the file.
+     *
+     * @param pool the parser pool
+     */
+    public final synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        parserPool = pool;
+    }
+
+    /**
+     * Gets whether the file is watched for changes.
+     *
+     * @return whether the file is watched for changes
+     */
+    public final synchronized boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Sets whether the file is watched for changes.
+     *
+     * @param watch whether to watch the file for changes
+     */
+    public final synchronized void setWatching(final boolean watch) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        watching = watch;
+    }
+
+    /**
+     * Gets the current snapshot of the members.xml file.
+     *
+     * @return the current snapshot
+     */
+    @Nonnull public MembersSnapshot getSnapshot() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        return snapshot;
+    }
+
+    /**
+     * Parse the file again and publish a new snapshot.
+     *
+     * <p>
+     * The watching thread does the same when the file changes. If the file can not be
+     * parsed, the previous snapshot is kept.
+     * </p>
+     *
+     * @return <code>true</code> if a new snapshot was published
+     */
+    boolean reload() {
+        return reload(getFile(), getParserPool());
+    }
+
+    /**
+     * Parse the given file again and publish a new snapshot.
+     *
+     * <p>
+     * The file and parser pool are passed in, rather than fetched while holding
+     * {@link #loadLock}, so that the provider can be destroyed while a reload is waiting.
+     * </p>
+     *
+     * @param f the members.xml file
+     * @param pool the parser pool used to parse the file
+     * @return <code>true</code> if a new snapshot was published
+     */
+    private boolean reload(@Nonnull final File f, @Nonnull final ParserPool pool) {
+        synchronized (loadLock) {
+            if (snapshot == null) {
+                // the provider has been destroyed
+                return false;
+            }
+            try {
+                snapshot = load(f, pool);
+                log.info("reloaded members from {}", f);
+                return true;
+            } catch (final IOException e) {
+                log.warn("could not reload members, keeping previous version: {}", e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse a file into a new snapshot.
+     *
+     * @param f the members.xml file
+     * @param pool the parser pool used to parse the file
+     * @return the new snapshot
+     * @throws IOException if the file can not be read or parsed
+     */
+    @Nonnull private static MembersSnapshot load(@Nonnull final File f, @Nonnull final ParserPool pool)
+            throws IOException {
+        final Document document;
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            document = pool.parse(in);
+        } catch (final XMLParserException e) {
+            throw new IOException("could not parse " + f, e);
+        }
+        try {
+            return new MembersSnapshot(new Members(document));
+        } catch (final Exception e) {
+            // the members API reports a document it can not unmarshal in several ways
+            throw new IOException("could not interpret " + f + " as members", e);
+        }
+    }
+
+    /**
+     * Watch the file's directory, reloading the file each time it is created or modified.
+     *
+     * <p>
+     * Runs on the watching thread until the {@link WatchService} is closed or the thread
+     * is interrupted.
+     * </p>
+     *
+     * @param service the {@link WatchService} for the file's directory
+     * @param name the name of the file within its directory
+     * @param f the members.xml file
+     * @param pool the parser pool used to parse the file
+     */
+    private void watch(@Nonnull final WatchService service, @Nonnull final Path name,
+            @Nonnull final File f, @Nonnull final ParserPool pool) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    // an overflow means events were lost, which may have included ours
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    reload(f, pool);
+                }
+            }
+        } catch (final ClosedWatchServiceException | InterruptedException e) {
+            // the provider has been destroyed
+        }
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (file == null) {
+            throw new ComponentInitializationException("file must be provided");
+        }
+        if (parserPool == null) {
+            throw new ComponentInitializationException("parserPool must be provided");
+        }
+
+        try {
+            snapshot = load(file, parserPool);
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("could not load members", e);
+        }
+
+        if (watching) {
+            final Path path = file.getAbsoluteFile().toPath();
+            final WatchService service;
+            synchronized (loadLock) {
+                try {
+                    watchService = path.getFileSystem().newWatchService();
+                    path.getParent().register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (final IOException e) {
+                    closeWatchService();
+                    throw new ComponentInitializationException("could not watch " + file, e);
+                }
+                service = watchService;
+            }
+            final File f = file;
+            final ParserPool pool = parserPool;
+            watcher = new Thread(() -> watch(service, path.getFileName(), f, pool),
+                    "MembersProvider watching " + file.getName());
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * Close the {@link WatchService}, if there is one, which stops the watching thread.
+     */
+    @GuardedBy("loadLock")
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                // nothing more can be done with the service
+            }
+            watchService = null;
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        // once this lock is released, no reload is in progress and none will publish a snapshot
+        synchronized (loadLock) {
+            closeWatchService();
+            snapshot = null;
+        }
+
+        if (watcher != null) {
+            watcher.interrupt();
+            try {
+                watcher.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            watcher = null;
+        }
+
+        super.doDestroy();
+    }
+
+}
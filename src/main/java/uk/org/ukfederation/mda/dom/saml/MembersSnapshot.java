@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import uk.org.ukfederation.members.Members;
+import uk.org.ukfederation.members.jaxb.MemberElement;
+
+/**
+ * A fixed view of a {@link Members} object, indexing the members looked up by name.
+ *
+ * <p>
+ * The {@link Members} API does not allow its members to be listed, so the index is filled
+ * as each organisation name is first looked up; both members and unknown names are
+ * recorded. Most organisations own several entities, so almost every lookup is answered
+ * from the index without locking, however large members.xml grows.
+ * </p>
+ *
+ * <p>
+ * The {@link Members} API is not documented as safe for use by several threads at once,
+ * so lookups which miss the index are made while holding the lock on the {@link Members}
+ * object.
+ * </p>
+ *
+ * <p>
+ * As the underlying {@link Members} object does not change, the answers given by a
+ * snapshot never change either.
+ * </p>
+ */
+@ThreadSafe
+public final class MembersSnapshot {
+
+    /** The underlying members API object. */
+    @Nonnull private final Members members;
+
+    /** Index of the members looked up so far, by organisation name. */
+    @Nonnull private final ConcurrentMap<String, Optional<MemberElement>> membersByName = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param m the members API object
+     */
+    public MembersSnapshot(@Nonnull final Members m) {
+        members = Constraint.isNotNull(m, "members can not be null");
+    }
+
+    /**
+     * Get the underlying members API object.
+     *
+     * @return the members API object
+     */
+    @Nonnull public Members getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the member with the given organisation name.
+     *
+     * @param name the organisation name
+     * @return the member, or <code>null</code> if there is no member with that name
+     */
+    @Nullable public MemberElement getMemberByName(@Nonnull final String name) {
+        Optional<MemberElement> member = membersByName.get(name);
+        if (member == null) {
+            synchronized (members) {
+                member = membersByName.get(name);
+                if (member == null) {
+                    member = Optional.ofNullable(members.getMemberByName(name));
+                    membersByName.put(name, member);
+                }
+            }
+        }
+        return member.orElse(null);
+    }
+
+}
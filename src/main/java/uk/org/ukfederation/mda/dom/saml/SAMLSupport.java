@@ -18,6 +18,7 @@ import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
@@ -25,6 +26,8 @@ import net.shibboleth.metadata.dom.Container;
 import net.shibboleth.metadata.dom.ElementMaker;
 import net.shibboleth.metadata.dom.ElementMatcher;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
@@ -77,4 +80,36 @@ public final class SAMLSupport {
         }
     }
 
+    /**
+     * Find the child element with a given name whose text is best suited to English readers.
+     *
+     * <p>
+     * The first child element with <code>xml:lang="en"</code> is preferred. Failing that,
+     * the first with a country-specific variant such as <code>xml:lang="en-GB"</code> is
+     * returned. The children are examined in a single pass, which stops as soon as an
+     * exact <code>en</code> match is found.
+     * </p>
+     *
+     * @param parent the parent {@link Element}
+     * @param name the name of the child elements to examine
+     * @return the best English child element, or <code>null</code> if there is none
+     */
+    @Nullable
+    public static Element findEnglishChild(@Nonnull final Element parent, @Nonnull final QName name) {
+        Element variant = null;
+        for (Element child = ElementSupport.getFirstChildElement(parent); child != null;
+                child = ElementSupport.getNextSiblingElement(child)) {
+            if (ElementSupport.isElementNamed(child, name)) {
+                final String lang = AttributeSupport.getXMLLang(child);
+                if ("en".equals(lang)) {
+                    return child;
+                }
+                if (variant == null && lang != null && lang.startsWith("en-")) {
+                    variant = child;
+                }
+            }
+        }
+        return variant;
+    }
+
 }
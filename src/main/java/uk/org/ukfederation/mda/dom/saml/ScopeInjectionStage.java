@@ -14,12 +14,17 @@
 
 package uk.org.ukfederation.mda.dom.saml;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
@@ -27,6 +32,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.Container;
@@ -35,14 +43,46 @@ import net.shibboleth.metadata.dom.ElementMatcher;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
-import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
 import uk.org.ukfederation.members.Members;
 
 /**
  * Stage to inject scope lists into IdP entities from the members.xml file.
+ *
+ * <p>
+ * The <code>Scope</code> elements are built once for each entity, in the entity's own
+ * <code>Extensions</code> element. Each of its role descriptors then receives clones of
+ * those elements, so no DOM nodes are shared between items.
+ * </p>
+ *
+ * <p>
+ * The elements are built from an immutable description of each distinct scope list,
+ * holding the scopes and the attributes to give each element. Descriptions are cached,
+ * keyed by the content of the list, across items and executions, and the cache is cleared
+ * when the stage is destroyed. Descriptions hold no DOM nodes, so the cache can be used
+ * by several executions at once.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>members</dt>
+ *   <dd>
+ *      The {@link Members} API object.
+ *      Exactly one of <code>members</code> and <code>membersProvider</code> is required.
+ *   </dd>
+ *
+ *   <dt>membersProvider</dt>
+ *   <dd>
+ *      The {@link MembersProvider} supplying the current members snapshot, which is
+ *      taken at the start of each execution so that changes to members.xml are picked
+ *      up without restarting.
+ *   </dd>
+ * </dl>
  */
 @ThreadSafe
 public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
@@ -79,14 +119,20 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
     private final Logger log = LoggerFactory.getLogger(ScopeInjectionStage.class);
     
     /** Information about members of the UK federation. */
-    @GuardedBy("this") @NonnullAfterInit private Members members;
+    @GuardedBy("this") @Nullable private Members members;
+
+    /** Provider of snapshots of information about members of the UK federation. */
+    @GuardedBy("this") @Nullable private MembersProvider membersProvider;
+
+    /** Description of each distinct scope list seen, keyed by the content of the list. */
+    @Nonnull private final Map<List<String>, ScopeListDescription> descriptions = new ConcurrentHashMap<>();
 
     /**
      * Get the members API object.
      *
      * @return the members API object
      */
-    @NonnullAfterInit
+    @Nullable
     public final synchronized Members getMembers() {
         return members;
     }
@@ -100,6 +146,46 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
         members = m;
     }
     
+    /**
+     * Get the provider of members snapshots.
+     *
+     * @return the members provider
+     */
+    @Nullable
+    public final synchronized MembersProvider getMembersProvider() {
+        return membersProvider;
+    }
+
+    /**
+     * Set the provider of members snapshots to use.
+     *
+     * @param provider the members provider to use
+     */
+    public final synchronized void setMembersProvider(@Nonnull final MembersProvider provider) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        membersProvider = provider;
+    }
+
+    /**
+     * Get the members API object to use for an execution of the stage.
+     *
+     * @return the current members API object
+     */
+    @Nonnull private synchronized Members currentMembers() {
+        return members != null ? members : membersProvider.getSnapshot().getMembers();
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        // use the same members information for the whole collection
+        final Members current = currentMembers();
+        for (final Item<Element> item : items) {
+            doExecute(item.unwrap(), item.getItemMetadata(), current);
+        }
+    }
+
     @Override
     protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
         doExecute(item.unwrap(), item.getItemMetadata());
@@ -114,6 +200,20 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
      */
     protected void doExecute(@Nonnull final Element entity,
             @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata) throws StageProcessingException {
+        doExecute(entity, metadata, currentMembers());
+    }
+
+    /**
+     * Process a single entity using given members information.
+     * 
+     * @param entity DOM {@link Element} containing the <code>EntityDescriptor</code>
+     * @param metadata item metadata collection for the entity
+     * @param membersObject the members API object to take scopes from
+     * @throws StageProcessingException if the item is not an entity
+     */
+    protected void doExecute(@Nonnull final Element entity,
+            @Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata,
+            @Nonnull final Members membersObject) throws StageProcessingException {
 
         // Verify that we're dealing with an entity descriptor.
         if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
@@ -127,7 +227,7 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
         }
         
         // Get the pushed scope list. If there are none, we're done.
-        final List<String> pushedScopes = getMembers().scopesForEntity(entityID);
+        final List<String> pushedScopes = membersObject.scopesForEntity(entityID);
         if (pushedScopes == null) {
             return;
         }
@@ -138,27 +238,30 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
         final Container entityContainer = new Container(entity);
         
         // Handle the Extensions on the entity itself. This must always be present.
-        addPushedScopes(entityContainer, pushedScopes);
+        final List<Element> scopeElements = addPushedScopes(entityContainer, pushedScopes);
         
-        // Add to each of the appropriate role descriptors, if present.
-        addPushedScopesToRole(entityContainer, pushedScopes, IDP_SSO_DESCRIPTOR_MATCHER);
-        addPushedScopesToRole(entityContainer, pushedScopes, ATTRIBUTE_AUTHORITY_DESCRIPTOR_MATCHER);
+        // Add copies to each of the appropriate role descriptors, if present.
+        addPushedScopesToRole(entityContainer, scopeElements, IDP_SSO_DESCRIPTOR_MATCHER);
+        addPushedScopesToRole(entityContainer, scopeElements, ATTRIBUTE_AUTHORITY_DESCRIPTOR_MATCHER);
     }
 
     /**
      * Add pushed scopes to a given role descriptor within an entity.
      * 
      * @param entity {@link Container} for the entity
-     * @param scopes list of scopes to be added
+     * @param scopeElements <code>Scope</code> elements already added to the entity, to be copied
      * @param roleMatcher matcher for the role descriptor element
      */
-    private void addPushedScopesToRole(@Nonnull final Container entity, @Nonnull final List<String> scopes,
+    private void addPushedScopesToRole(@Nonnull final Container entity, @Nonnull final List<Element> scopeElements,
             @Nonnull final Predicate<Element> roleMatcher) {
         final Container role = entity.findChild(roleMatcher);
         if (role == null) {
             return;
         }
-        addPushedScopes(role, scopes);
+        final Container extensions = role.locateChild(EXTENSIONS_MATCHER, EXTENSIONS_MAKER, Container.FIRST_CHILD);
+        for (final Element scopeElement : scopeElements) {
+            extensions.addChild((Element) scopeElement.cloneNode(true), Container.LAST_CHILD);
+        }
     }
 
     /**
@@ -168,21 +271,95 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
      * 
      * @param descriptor {@link Container} for the descriptor
      * @param scopes list of scopes to be added
+     * @return the new <code>Scope</code> elements, one for each scope
      */
-    private void addPushedScopes(@Nonnull final Container descriptor, @Nonnull final List<String> scopes) {
+    @Nonnull private List<Element> addPushedScopes(@Nonnull final Container descriptor,
+            @Nonnull final List<String> scopes) {
         final Container extensions =
                 descriptor.locateChild(EXTENSIONS_MATCHER, EXTENSIONS_MAKER, Container.FIRST_CHILD);
-        for (final String scope : scopes) {
-            final Element newScope = ShibbolethMetadataSupport.SCOPE_MAKER.apply(extensions);
-            newScope.setTextContent(scope);
-            AttributeSupport.appendAttribute(newScope, ShibbolethMetadataSupport.REGEXP_ATTRIB_NAME, "false");
-            extensions.addChild(newScope, Container.LAST_CHILD);
+        return describe(scopes).addTo(extensions);
+    }
+
+    /**
+     * Get the description of a scope list, from the cache if it has been seen before.
+     *
+     * @param scopes list of scopes
+     * @return the {@link ScopeListDescription} for the list
+     */
+    @Nonnull private ScopeListDescription describe(@Nonnull final List<String> scopes) {
+        final ScopeListDescription description = descriptions.get(scopes);
+        if (description != null) {
+            return description;
+        }
+        // key the cache by an immutable copy, as the list belongs to the members object
+        final ScopeListDescription newDescription = new ScopeListDescription(scopes);
+        final ScopeListDescription existing = descriptions.putIfAbsent(newDescription.getScopes(), newDescription);
+        return existing != null ? existing : newDescription;
+    }
+
+    /**
+     * Description of the <code>Scope</code> elements to be added for one scope list.
+     *
+     * <p>
+     * A description holds the scopes, together with the attributes shared by every element,
+     * but no DOM nodes, so it can be used to build elements in any number of documents at once.
+     * </p>
+     */
+    @Immutable
+    private static final class ScopeListDescription {
+
+        /** Attributes given to every <code>Scope</code> element. */
+        private static final Map<QName, String> SCOPE_ATTRIBUTES =
+                ImmutableMap.of(ShibbolethMetadataSupport.REGEXP_ATTRIB_NAME, "false");
+
+        /** The scopes, in order. */
+        @Nonnull @NonnullElements private final List<String> scopes;
+
+        /**
+         * Constructor.
+         *
+         * @param scopeList list of scopes
+         */
+        ScopeListDescription(@Nonnull @NonnullElements final List<String> scopeList) {
+            scopes = ImmutableList.copyOf(scopeList);
+        }
+
+        /**
+         * Get the scopes.
+         *
+         * @return the scopes, in order
+         */
+        @Nonnull @NonnullElements List<String> getScopes() {
+            return scopes;
+        }
+
+        /**
+         * Build a <code>Scope</code> element for each scope, and add it to an
+         * <code>Extensions</code> element.
+         *
+         * @param extensions {@link Container} for the <code>Extensions</code> element
+         * @return the new <code>Scope</code> elements, one for each scope
+         */
+        @Nonnull List<Element> addTo(@Nonnull final Container extensions) {
+            final List<Element> scopeElements = new ArrayList<>(scopes.size());
+            for (final String scope : scopes) {
+                final Element newScope = ShibbolethMetadataSupport.SCOPE_MAKER.apply(extensions);
+                newScope.setTextContent(scope);
+                for (final Map.Entry<QName, String> attribute : SCOPE_ATTRIBUTES.entrySet()) {
+                    AttributeSupport.appendAttribute(newScope, attribute.getKey(), attribute.getValue());
+                }
+                extensions.addChild(newScope, Container.LAST_CHILD);
+                scopeElements.add(newScope);
+            }
+            return scopeElements;
         }
     }
 
     @Override
     protected void doDestroy() {
         members = null;
+        membersProvider = null;
+        descriptions.clear();
 
         super.doDestroy();
     }
@@ -191,9 +368,9 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
 
-        if (members == null) {
+        if ((members == null) == (membersProvider == null)) {
             throw new ComponentInitializationException(
-                    "members API object must be provided");
+                    "exactly one of members API object and members provider must be provided");
         }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Base class for stages which can process parts of an item collection in parallel,
+ * using {@link ParallelSupport}.
+ *
+ * <p>
+ * Each subclass decides which part of its work is performed in parallel, and must make
+ * sure that its results do not depend on whether an {@link ExecutorService} is supplied.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>executorService</dt>
+ *   <dd>
+ *      The {@link ExecutorService} used for parallel processing. It is not shut down by the stage.
+ *      By default, <code>null</code>, meaning that all processing is sequential.
+ *   </dd>
+ *
+ *   <dt>chunkSize</dt>
+ *   <dd>
+ *      The number of items processed by each parallel task. By default, 1000.
+ *   </dd>
+ * </dl>
+ *
+ * @param <T> type of items processed by the stage
+ */
+@ThreadSafe
+public abstract class AbstractParallelStage<T> extends AbstractStage<T> {
+
+    /**
+     * {@link ExecutorService} used for parallel processing.
+     *
+     * <p>
+     * Default value: <code>null</code>, meaning that all processing is sequential.
+     * </p>
+     */
+    @Nullable @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /**
+     * Number of items processed by each parallel task.
+     *
+     * <p>
+     * Default value: 1000.
+     * </p>
+     */
+    @GuardedBy("this")
+    private int chunkSize = 1000;
+
+    /**
+     * Gets the {@link ExecutorService} used for parallel processing.
+     *
+     * @return the {@link ExecutorService}, or <code>null</code> if processing is sequential
+     */
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used for parallel processing.
+     *
+     * <p>
+     * The executor is not shut down by the stage.
+     * </p>
+     *
+     * @param executor the {@link ExecutorService}, or <code>null</code> for sequential processing
+     */
+    public final synchronized void setExecutorService(@Nullable final ExecutorService executor) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        executorService = executor;
+    }
+
+    /**
+     * Gets the number of items processed by each parallel task.
+     *
+     * @return the number of items processed by each parallel task
+     */
+    public final synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of items processed by each parallel task.
+     *
+     * @param size the number of items processed by each parallel task
+     */
+    public final synchronized void setChunkSize(final int size) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        chunkSize = (int) Constraint.isGreaterThan(0, size, "chunk size must be greater than zero");
+    }
+
+    /**
+     * Perform a task for each index from <code>0</code> to <code>count-1</code>, in parallel
+     * if an {@link ExecutorService} has been supplied.
+     *
+     * @param count number of indices to process
+     * @param task the task to perform for each index
+     * @throws StageProcessingException if the task fails for any index
+     */
+    protected void forEachIndex(final int count, @Nonnull final ParallelSupport.IndexTask task)
+            throws StageProcessingException {
+        ParallelSupport.forEachIndex(getExecutorService(), count, getChunkSize(), task);
+    }
+
+    @Override
+    protected void doDestroy() {
+        executorService = null;
+
+        super.doDestroy();
+    }
+
+}
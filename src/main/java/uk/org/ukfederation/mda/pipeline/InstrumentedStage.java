@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.collect.ImmutableList;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A stage which wraps another stage, recording {@link StageMetrics} for each execution
+ * and passing them to a collection of {@link StageMetricsListener}s.
+ *
+ * <p>
+ * Any stage may be wrapped, so a pipeline can be instrumented by wrapping each of its
+ * stages without changing the stages themselves. The wrapped stage is not initialized
+ * or destroyed by this stage; it should be managed in the usual way.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>stage</dt>
+ *   <dd>
+ *      The {@link Stage} to execute and instrument. Required.
+ *   </dd>
+ *
+ *   <dt>listeners</dt>
+ *   <dd>
+ *      The {@link StageMetricsListener}s to notify after each execution. By default, empty,
+ *      in which case the wrapped stage is executed without instrumentation.
+ *   </dd>
+ * </dl>
+ *
+ * @param <T> type of item processed by the stage
+ */
+@ThreadSafe
+public class InstrumentedStage<T> extends AbstractStage<T> {
+
+    /** Source of per-thread CPU time and allocation figures. */
+    @Nonnull private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    /** The stage to execute and instrument. */
+    @Nullable @GuardedBy("this")
+    private Stage<T> stage;
+
+    /** The listeners to notify after each execution. */
+    @Nonnull @NonnullElements @GuardedBy("this")
+    private List<StageMetricsListener> listeners = Collections.emptyList();
+
+    /**
+     * Gets the stage to execute and instrument.
+     *
+     * @return the wrapped stage
+     */
+    @Nullable public final synchronized Stage<T> getStage() {
+        return stage;
+    }
+
+    /**
+     * Sets the stage to execute and instrument.
+     *
+     * @param newStage the stage to wrap
+     */
+    public final synchronized void setStage(@Nonnull final Stage<T> newStage) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        stage = Constraint.isNotNull(newStage, "stage can not be null");
+    }
+
+    /**
+     * Gets the listeners to notify after each execution.
+     *
+     * @return the listeners
+     */
+    @Nonnull @NonnullElements public final synchronized List<StageMetricsListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Sets the listeners to notify after each execution.
+     *
+     * @param newListeners the listeners
+     */
+    public final synchronized void setListeners(@Nonnull @NonnullElements
+            final List<StageMetricsListener> newListeners) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        listeners = ImmutableList.copyOf(Constraint.isNotNull(newListeners, "listeners can not be null"));
+    }
+
+    /**
+     * Counts the statuses of a given kind attached to a collection of items.
+     *
+     * @param items the items to examine
+     * @param kind the kind of status to count
+     * @return the number of statuses of that kind
+     */
+    private static int countStatuses(@Nonnull @NonnullElements final List<? extends Item<?>> items,
+            @Nonnull final Class<? extends ItemMetadata> kind) {
+        int count = 0;
+        for (final Item<?> item : items) {
+            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+            count += metadata.get(kind).size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the CPU time used so far by the current thread.
+     *
+     * @return the CPU time in nanoseconds, or <code>-1</code> if not available
+     */
+    private static long currentThreadCpuTime() {
+        if (THREAD_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_BEAN.getCurrentThreadCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread.
+     *
+     * @return the number of bytes allocated, or <code>-1</code> if not available
+     */
+    private static long currentThreadAllocatedBytes() {
+        if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_BEAN;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the difference between two measurements, either of which may be unavailable.
+     *
+     * @param before the measurement before execution, or <code>-1</code>
+     * @param after the measurement after execution, or <code>-1</code>
+     * @return the difference, or <code>-1</code> if either measurement was unavailable
+     */
+    private static long difference(final long before, final long after) {
+        if (before < 0 || after < 0) {
+            return -1;
+        }
+        return after - before;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
+            throws StageProcessingException {
+        final Stage<T> wrapped = getStage();
+        final List<StageMetricsListener> theListeners = getListeners();
+        if (theListeners.isEmpty()) {
+            wrapped.execute(items);
+            return;
+        }
+
+        final int itemsIn = items.size();
+        final int errorsIn = countStatuses(items, ErrorStatus.class);
+        final int warningsIn = countStatuses(items, WarningStatus.class);
+        final int infosIn = countStatuses(items, InfoStatus.class);
+
+        final long allocatedBefore = currentThreadAllocatedBytes();
+        final long cpuBefore = currentThreadCpuTime();
+        final long wallBefore = System.nanoTime();
+        wrapped.execute(items);
+        final long wallAfter = System.nanoTime();
+        final long cpuAfter = currentThreadCpuTime();
+        final long allocatedAfter = currentThreadAllocatedBytes();
+
+        final StageMetrics metrics = new StageMetrics(wrapped.getId(),
+                wallAfter - wallBefore,
+                difference(cpuBefore, cpuAfter),
+                difference(allocatedBefore, allocatedAfter),
+                itemsIn, items.size(),
+                countStatuses(items, ErrorStatus.class) - errorsIn,
+                countStatuses(items, WarningStatus.class) - warningsIn,
+                countStatuses(items, InfoStatus.class) - infosIn);
+        for (final StageMetricsListener listener : theListeners) {
+            listener.stageExecuted(metrics);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        stage = null;
+        listeners = Collections.emptyList();
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (stage == null) {
+            throw new ComponentInitializationException("stage to instrument must be provided");
+        }
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A {@link StageMetricsListener} which accumulates metrics for each stage and exposes
+ * them as a {@link StageMetricsMXBean} registered with an {@link MBeanServer}.
+ *
+ * <p>
+ * One MBean is registered for each distinct stage identifier seen, named
+ * <code><i>domain</i>:type=Stage,name=<i>stageId</i></code>. All registered MBeans
+ * are unregistered when the listener is destroyed.
+ * </p>
+ *
+ * <p>
+ * Registration of a new stage's MBean and unregistration on destroy take the same lock, so
+ * that no MBean can be registered after the listener has been destroyed. Metrics reported
+ * after the listener has been destroyed, for example by a stage still running in another
+ * thread, are ignored.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>domain</dt>
+ *   <dd>
+ *      The JMX domain under which to register MBeans.
+ *      By default, <code>"uk.org.ukfederation.mda"</code>.
+ *   </dd>
+ *
+ *   <dt>MBeanServer</dt>
+ *   <dd>
+ *      The {@link MBeanServer} with which to register MBeans. By default, the platform MBean server.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class JMXStageMetricsListener extends AbstractInitializableComponent implements StageMetricsListener {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(JMXStageMetricsListener.class);
+
+    /** JMX domain under which to register MBeans. */
+    @Nonnull @GuardedBy("this")
+    private String domain = "uk.org.ukfederation.mda";
+
+    /** {@link MBeanServer} with which to register MBeans. */
+    @Nonnull @GuardedBy("this")
+    private MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    /** Accumulated metrics, indexed by stage identifier. */
+    @Nonnull @NonnullElements @GuardedBy("this")
+    private final Map<String, Recorder> recorders = new HashMap<>();
+
+    /** Whether the listener's MBeans have been unregistered, after which metrics are ignored. */
+    @GuardedBy("this")
+    private boolean unregistered;
+
+    /**
+     * Gets the JMX domain under which MBeans are registered.
+     *
+     * @return the JMX domain
+     */
+    @Nonnull public final synchronized String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Sets the JMX domain under which MBeans are registered.
+     *
+     * @param newDomain the JMX domain
+     */
+    public final synchronized void setDomain(@Nonnull final String newDomain) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        domain = Constraint.isNotNull(newDomain, "domain can not be null");
+    }
+
+    /**
+     * Gets the {@link MBeanServer} with which MBeans are registered.
+     *
+     * @return the {@link MBeanServer}
+     */
+    @Nonnull public final synchronized MBeanServer getMBeanServer() {
+        return mbeanServer;
+    }
+
+    /**
+     * Sets the {@link MBeanServer} with which MBeans are registered.
+     *
+     * @param server the {@link MBeanServer}
+     */
+    public final synchronized void setMBeanServer(@Nonnull final MBeanServer server) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        mbeanServer = Constraint.isNotNull(server, "MBean server can not be null");
+    }
+
+    /**
+     * Gets the MBean for a stage, if metrics have been recorded for it.
+     *
+     * @param stageId identifier of the stage
+     * @return the stage's MBean, or <code>null</code>
+     */
+    @Nullable public synchronized StageMetricsMXBean getStageMetrics(@Nonnull final String stageId) {
+        return recorders.get(stageId);
+    }
+
+    @Override
+    public void stageExecuted(@Nonnull final StageMetrics metrics) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final Recorder recorder;
+        synchronized (this) {
+            if (unregistered) {
+                return;
+            }
+            recorder = recorders.computeIfAbsent(metrics.getStageId(), this::register);
+        }
+        recorder.record(metrics);
+    }
+
+    /**
+     * Create a {@link Recorder} for a stage and register it as an MBean.
+     *
+     * <p>
+     * Failure to register the MBean is logged, but does not prevent metrics from
+     * being accumulated.
+     * </p>
+     *
+     * @param stageId identifier of the stage
+     * @return the new {@link Recorder}
+     */
+    @GuardedBy("this")
+    @Nonnull private Recorder register(@Nonnull final String stageId) {
+        final Recorder recorder = new Recorder(stageId);
+        try {
+            recorder.name = objectName(stageId);
+            getMBeanServer().registerMBean(recorder, recorder.name);
+        } catch (final JMException e) {
+            log.warn("could not register metrics MBean for stage {}: {}", stageId, e.getMessage());
+            recorder.name = null;
+        }
+        return recorder;
+    }
+
+    /**
+     * Compose the {@link ObjectName} for a stage's MBean.
+     *
+     * @param stageId identifier of the stage
+     * @return the {@link ObjectName}
+     * @throws JMException if the name is malformed
+     */
+    @Nonnull private ObjectName objectName(@Nonnull final String stageId) throws JMException {
+        return new ObjectName(getDomain() + ":type=Stage,name=" + ObjectName.quote(stageId));
+    }
+
+    /** Unregister all MBeans, and ignore any metrics reported from now on. */
+    private synchronized void unregister() {
+        unregistered = true;
+        for (final Recorder recorder : recorders.values()) {
+            if (recorder.name != null) {
+                try {
+                    mbeanServer.unregisterMBean(recorder.name);
+                } catch (final JMException e) {
+                    log.warn("could not unregister metrics MBean {}: {}", recorder.name, e.getMessage());
+                }
+            }
+        }
+        recorders.clear();
+    }
+
+    @Override
+    protected void doDestroy() {
+        unregister();
+
+        super.doDestroy();
+    }
+
+    /** Accumulates the metrics for a single stage. */
+    @ThreadSafe
+    private static final class Recorder implements StageMetricsMXBean {
+
+        /** Identifier of the stage. */
+        @Nonnull private final String stageId;
+
+        /** Name under which the MBean is registered, or <code>null</code> if not registered. */
+        @Nullable private volatile ObjectName name;
+
+        /** Number of executions recorded. */
+        @GuardedBy("this") private long executions;
+
+        /** Total wall-clock time. */
+        @GuardedBy("this") private long totalWallTime;
+
+        /** Longest wall-clock time. */
+        @GuardedBy("this") private long maxWallTime;
+
+        /** Total CPU time. */
+        @GuardedBy("this") private long totalCpuTime;
+
+        /** Total bytes allocated. */
+        @GuardedBy("this") private long totalAllocatedBytes;
+
+        /** Metrics for the most recent execution. */
+        @GuardedBy("this") private StageMetrics last;
+
+        /**
+         * Constructor.
+         *
+         * @param id identifier of the stage
+         */
+        private Recorder(@Nonnull final String id) {
+            stageId = id;
+            reset();
+        }
+
+        /**
+         * Accumulate the metrics for an execution.
+         *
+         * @param metrics the metrics for the execution
+         */
+        synchronized void record(@Nonnull final StageMetrics metrics) {
+            executions++;
+            totalWallTime += metrics.getWallTime();
+            maxWallTime = Math.max(maxWallTime, metrics.getWallTime());
+            if (metrics.getCpuTime() >= 0) {
+                totalCpuTime += metrics.getCpuTime();
+            }
+            if (metrics.getAllocatedBytes() >= 0) {
+                totalAllocatedBytes += metrics.getAllocatedBytes();
+            }
+            last = metrics;
+        }
+
+        @Override
+        public String getStageId() {
+            return stageId;
+        }
+
+        @Override
+        public synchronized long getExecutions() {
+            return executions;
+        }
+
+        @Override
+        public synchronized long getLastWallTime() {
+            return last.getWallTime();
+        }
+
+        @Override
+        public synchronized long getTotalWallTime() {
+            return totalWallTime;
+        }
+
+        @Override
+        public synchronized long getMaxWallTime() {
+            return maxWallTime;
+        }
+
+        @Override
+        public synchronized long getLastCpuTime() {
+            return last.getCpuTime();
+        }
+
+        @Override
+        public synchronized long getTotalCpuTime() {
+            return totalCpuTime;
+        }
+
+        @Override
+        public synchronized long getLastAllocatedBytes() {
+            return last.getAllocatedBytes();
+        }
+
+        @Override
+        public synchronized long getTotalAllocatedBytes() {
+            return totalAllocatedBytes;
+        }
+
+        @Override
+        public synchronized int getLastItemsIn() {
+            return last.getItemsIn();
+        }
+
+        @Override
+        public synchronized int getLastItemsOut() {
+            return last.getItemsOut();
+        }
+
+        @Override
+        public synchronized int getLastErrorsAdded() {
+            return last.getErrorsAdded();
+        }
+
+        @Override
+        public synchronized int getLastWarningsAdded() {
+            return last.getWarningsAdded();
+        }
+
+        @Override
+        public synchronized int getLastInfosAdded() {
+            return last.getInfosAdded();
+        }
+
+        @Override
+        public synchronized void reset() {
+            executions = 0;
+            totalWallTime = 0;
+            maxWallTime = 0;
+            totalCpuTime = 0;
+            totalAllocatedBytes = 0;
+            last = new StageMetrics(stageId, 0, -1, -1, 0, 0, 0, 0, 0);
+        }
+    }
+
+}
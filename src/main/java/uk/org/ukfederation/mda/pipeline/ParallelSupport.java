@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Helper methods for stages which can process parts of an item collection in parallel.
+ *
+ * <p>
+ * Work is divided into contiguous chunks of indices, each of which is processed on a single
+ * thread. Stages using these methods should restrict the parallel part of their work to
+ * reading or computing per-item results into arrays indexed by position, and apply any
+ * order-dependent logic (such as "first occurrence wins") in a sequential pass afterwards,
+ * so that results do not depend on scheduling.
+ * </p>
+ */
+@ThreadSafe
+public final class ParallelSupport {
+
+    /**
+     * A task to be performed for each index in a range.
+     */
+    @FunctionalInterface
+    public interface IndexTask {
+
+        /**
+         * Perform the task for a single index.
+         *
+         * @param index the index to process
+         * @throws StageProcessingException if the task fails
+         */
+        void apply(int index) throws StageProcessingException;
+    }
+
+    /** Constructor. */
+    private ParallelSupport() {
+    }
+
+    /**
+     * Perform a task for each index from <code>0</code> to <code>count-1</code>.
+     *
+     * <p>
+     * If no {@link ExecutorService} is supplied, or the range fits in a single chunk,
+     * the task is performed sequentially on the calling thread. Otherwise, the range is
+     * divided into chunks of at most <code>chunkSize</code> indices, which are submitted
+     * to the executor; this method returns when all of them have completed.
+     * </p>
+     *
+     * @param executor {@link ExecutorService} on which to run the chunks, or <code>null</code>
+     * @param count number of indices to process
+     * @param chunkSize maximum number of indices to process in each chunk
+     * @param task the task to perform for each index
+     * @throws StageProcessingException if the task fails for any index, or the calling
+     *      thread is interrupted while waiting for the chunks to complete
+     */
+    public static void forEachIndex(@Nullable final ExecutorService executor, final int count, final int chunkSize,
+            @Nonnull final IndexTask task) throws StageProcessingException {
+        Constraint.isGreaterThan(0, chunkSize, "chunk size must be greater than zero");
+        Constraint.isNotNull(task, "task can not be null");
+
+        if (executor == null || count <= chunkSize) {
+            for (int index = 0; index < count; index++) {
+                task.apply(index);
+            }
+            return;
+        }
+
+        final List<Callable<Void>> chunks = new ArrayList<>(count / chunkSize + 1);
+        for (int start = 0; start < count; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(count, start + chunkSize);
+            chunks.add(() -> {
+                for (int index = from; index < to; index++) {
+                    task.apply(index);
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (final Future<Void> future : executor.invokeAll(chunks)) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while waiting for parallel processing", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StageProcessingException) {
+                throw (StageProcessingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StageProcessingException("parallel processing failed", e);
+        }
+    }
+
+}
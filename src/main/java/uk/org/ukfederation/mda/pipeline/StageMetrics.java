@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Metrics recorded for a single execution of a stage.
+ *
+ * <p>
+ * CPU time and allocation figures cover only the thread which called the stage;
+ * work a stage hands off to other threads is not included. Either figure is
+ * <code>-1</code> if the JVM does not support measuring it.
+ * </p>
+ *
+ * <p>
+ * Status counts are the net change in the number of statuses of each kind attached to
+ * the collection's items, so a stage which removes items carrying statuses may
+ * record a negative count.
+ * </p>
+ */
+@Immutable
+public final class StageMetrics {
+
+    /** Identifier of the stage. */
+    @Nonnull private final String stageId;
+
+    /** Elapsed wall-clock time, in nanoseconds. */
+    private final long wallTime;
+
+    /** CPU time used by the calling thread, in nanoseconds. */
+    private final long cpuTime;
+
+    /** Bytes allocated by the calling thread. */
+    private final long allocatedBytes;
+
+    /** Number of items in the collection before execution. */
+    private final int itemsIn;
+
+    /** Number of items in the collection after execution. */
+    private final int itemsOut;
+
+    /** Net number of {@link net.shibboleth.metadata.ErrorStatus} values added. */
+    private final int errorsAdded;
+
+    /** Net number of {@link net.shibboleth.metadata.WarningStatus} values added. */
+    private final int warningsAdded;
+
+    /** Net number of {@link net.shibboleth.metadata.InfoStatus} values added. */
+    private final int infosAdded;
+
+    /**
+     * Constructor.
+     *
+     * @param id identifier of the stage
+     * @param wall elapsed wall-clock time, in nanoseconds
+     * @param cpu CPU time used by the calling thread, in nanoseconds, or <code>-1</code>
+     * @param allocated bytes allocated by the calling thread, or <code>-1</code>
+     * @param in number of items in the collection before execution
+     * @param out number of items in the collection after execution
+     * @param errors net number of error statuses added
+     * @param warnings net number of warning statuses added
+     * @param infos net number of informational statuses added
+     */
+    public StageMetrics(@Nonnull final String id, final long wall, final long cpu, final long allocated,
+            final int in, final int out, final int errors, final int warnings, final int infos) {
+        stageId = Constraint.isNotNull(id, "stage identifier can not be null");
+        wallTime = wall;
+        cpuTime = cpu;
+        allocatedBytes = allocated;
+        itemsIn = in;
+        itemsOut = out;
+        errorsAdded = errors;
+        warningsAdded = warnings;
+        infosAdded = infos;
+    }
+
+    /**
+     * Gets the identifier of the stage.
+     *
+     * @return the identifier of the stage
+     */
+    @Nonnull public String getStageId() {
+        return stageId;
+    }
+
+    /**
+     * Gets the elapsed wall-clock time.
+     *
+     * @return the elapsed wall-clock time, in nanoseconds
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Gets the CPU time used by the calling thread.
+     *
+     * @return the CPU time, in nanoseconds, or <code>-1</code> if not available
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Gets the number of bytes allocated by the calling thread.
+     *
+     * @return the number of bytes allocated, or <code>-1</code> if not available
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Gets the number of items in the collection before execution.
+     *
+     * @return the number of items before execution
+     */
+    public int getItemsIn() {
+        return itemsIn;
+    }
+
+    /**
+     * Gets the number of items in the collection after execution.
+     *
+     * @return the number of items after execution
+     */
+    public int getItemsOut() {
+        return itemsOut;
+    }
+
+    /**
+     * Gets the net number of error statuses added.
+     *
+     * @return the net number of error statuses added
+     */
+    public int getErrorsAdded() {
+        return errorsAdded;
+    }
+
+    /**
+     * Gets the net number of warning statuses added.
+     *
+     * @return the net number of warning statuses added
+     */
+    public int getWarningsAdded() {
+        return warningsAdded;
+    }
+
+    /**
+     * Gets the net number of informational statuses added.
+     *
+     * @return the net number of informational statuses added
+     */
+    public int getInfosAdded() {
+        return infosAdded;
+    }
+
+    @Override
+    public String toString() {
+        return "StageMetrics{stage=" + stageId +
+                ", wallTime=" + wallTime +
+                ", cpuTime=" + cpuTime +
+                ", allocatedBytes=" + allocatedBytes +
+                ", itemsIn=" + itemsIn +
+                ", itemsOut=" + itemsOut +
+                ", errorsAdded=" + errorsAdded +
+                ", warningsAdded=" + warningsAdded +
+                ", infosAdded=" + infosAdded + "}";
+    }
+
+}
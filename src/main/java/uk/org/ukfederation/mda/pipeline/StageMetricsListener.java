@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the {@link StageMetrics} recorded by an {@link InstrumentedStage}
+ * for each execution of the stage it wraps.
+ *
+ * <p>
+ * Implementations are called on the thread which executed the stage, and
+ * must be thread-safe if the same listener is shared between stages.
+ * </p>
+ */
+public interface StageMetricsListener {
+
+    /**
+     * Called after each successful execution of an instrumented stage.
+     *
+     * @param metrics the metrics recorded for the execution
+     */
+    void stageExecuted(@Nonnull StageMetrics metrics);
+
+}
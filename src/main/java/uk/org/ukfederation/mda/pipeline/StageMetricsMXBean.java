@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+/**
+ * Management interface exposing the metrics accumulated for a single stage
+ * by a {@link JMXStageMetricsListener}.
+ *
+ * <p>
+ * Times are in nanoseconds. CPU time and allocation totals include only those
+ * executions for which the figure was available.
+ * </p>
+ */
+public interface StageMetricsMXBean {
+
+    /**
+     * Gets the identifier of the stage.
+     *
+     * @return the identifier of the stage
+     */
+    String getStageId();
+
+    /**
+     * Gets the number of executions recorded.
+     *
+     * @return the number of executions
+     */
+    long getExecutions();
+
+    /**
+     * Gets the wall-clock time of the most recent execution.
+     *
+     * @return the wall-clock time of the most recent execution
+     */
+    long getLastWallTime();
+
+    /**
+     * Gets the total wall-clock time across all executions.
+     *
+     * @return the total wall-clock time
+     */
+    long getTotalWallTime();
+
+    /**
+     * Gets the longest wall-clock time of any execution.
+     *
+     * @return the longest wall-clock time
+     */
+    long getMaxWallTime();
+
+    /**
+     * Gets the CPU time of the most recent execution.
+     *
+     * @return the CPU time of the most recent execution, or <code>-1</code> if not available
+     */
+    long getLastCpuTime();
+
+    /**
+     * Gets the total CPU time across all executions.
+     *
+     * @return the total CPU time
+     */
+    long getTotalCpuTime();
+
+    /**
+     * Gets the number of bytes allocated by the most recent execution.
+     *
+     * @return the number of bytes allocated, or <code>-1</code> if not available
+     */
+    long getLastAllocatedBytes();
+
+    /**
+     * Gets the total number of bytes allocated across all executions.
+     *
+     * @return the total number of bytes allocated
+     */
+    long getTotalAllocatedBytes();
+
+    /**
+     * Gets the number of items passed to the most recent execution.
+     *
+     * @return the number of items in
+     */
+    int getLastItemsIn();
+
+    /**
+     * Gets the number of items left after the most recent execution.
+     *
+     * @return the number of items out
+     */
+    int getLastItemsOut();
+
+    /**
+     * Gets the net number of error statuses added by the most recent execution.
+     *
+     * @return the net number of error statuses added
+     */
+    int getLastErrorsAdded();
+
+    /**
+     * Gets the net number of warning statuses added by the most recent execution.
+     *
+     * @return the net number of warning statuses added
+     */
+    int getLastWarningsAdded();
+
+    /**
+     * Gets the net number of informational statuses added by the most recent execution.
+     *
+     * @return the net number of informational statuses added
+     */
+    int getLastInfosAdded();
+
+    /** Discard all accumulated metrics. */
+    void reset();
+
+}
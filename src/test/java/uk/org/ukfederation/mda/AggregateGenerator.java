@@ -0,0 +1,595 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import uk.org.ukfederation.mda.dom.saml.ShibbolethMetadataSupport;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
+
+/**
+ * Deterministic generator for synthetic UK federation aggregates.
+ *
+ * <p>
+ * The hand-written fixtures used by most tests describe a handful of entities at most.
+ * This class generates aggregates of arbitrary size, with a controlled mixture of the
+ * features the stages in this project care about:
+ * </p>
+ *
+ * <ul>
+ * <li><code>uk000000</code>-style <code>ID</code> attributes, a proportion of which may be duplicated,</li>
+ * <li><code>ukfedlabel:UKFederationMember</code> labels consistent with a matching members.xml document,</li>
+ * <li><code>ukfedlabel:EnableFlow</code> and <code>ukfedlabel:DisableFlow</code> extensions,</li>
+ * <li>identity provider names given by <code>mdui:DisplayName</code> or, failing that,
+ *     <code>md:OrganizationDisplayName</code>, a proportion of which may be duplicated,</li>
+ * <li>entities registered by foreign registration authorities,</li>
+ * <li>pushed scopes for identity providers, recorded in the members.xml document,</li>
+ * <li>embedded X.509 certificates.</li>
+ * </ul>
+ *
+ * <p>
+ * All random choices are made from a {@link Random} seeded with {@link #setSeed(long)}, so
+ * that a given configuration always produces the same aggregate. Each call to
+ * {@link #generateItems()} or {@link #generateMembers()} starts again from the seed, so
+ * the two are always consistent with each other.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+public class AggregateGenerator {
+
+    /** Namespace for <code>mdrpi</code> elements. */
+    private static final String MDRPI_NS = "urn:oasis:names:tc:SAML:metadata:rpi";
+
+    /** Namespace for XML digital signature elements. */
+    private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    /** Namespace for the members.xml document. */
+    private static final String MEMBERS_NS = "http://ukfederation.org.uk/2007/01/members";
+
+    /** Registration authority for UK federation entities. */
+    private static final String UK_AUTHORITY = "http://ukfederation.org.uk";
+
+    /** Registration authorities used for foreign entities. */
+    private static final String[] FOREIGN_AUTHORITIES = {
+        "https://www.wayf.dk",
+        "http://www.swamid.se/",
+        "https://incommon.org",
+    };
+
+    /** Flow names used in flow constraint extensions. */
+    private static final String[] FLOWS = {"export", "mdq"};
+
+    /** Classpath locations of the certificates embedded in the entities. */
+    private static final String[] CERTIFICATE_PATHS = {
+        "/uk/org/ukfederation/mda/validate/x509/X509DSADetector-rsa.pem",
+        "/uk/org/ukfederation/mda/validate/x509/X509ConsistentNameValidator-ligo-new.pem",
+    };
+
+    /** Seed for the random number generator. Default value: 0. */
+    private long seed;
+
+    /** Number of entities to generate. Default value: 100. */
+    private int entityCount = 100;
+
+    /** Proportion of entities which are identity providers. Default value: 0.5. */
+    private double identityProviderRate = 0.5;
+
+    /** Proportion of entities which are registered by a foreign registration authority. Default value: 0. */
+    private double foreignRate;
+
+    /** Proportion of entities which reuse the <code>ID</code> of an earlier entity. Default value: 0. */
+    private double duplicateIdRate;
+
+    /** Proportion of identity providers which reuse the name of an earlier identity provider. Default value: 0. */
+    private double duplicateDisplayNameRate;
+
+    /** Whether only foreign identity providers reuse the names of earlier identity providers. Default value: false. */
+    private boolean foreignDuplicatesOnly;
+
+    /** Proportion of identity providers named by <code>mdui:DisplayName</code>. Default value: 0.8. */
+    private double mduiRate = 0.8;
+
+    /** Proportion of entities carrying a <code>DisableFlow</code> extension. Default value: 0. */
+    private double disableFlowRate;
+
+    /** Proportion of entities carrying an <code>EnableFlow</code> extension. Default value: 0. */
+    private double enableFlowRate;
+
+    /** Proportion of UK identity providers with a pushed scope. Default value: 0.5. */
+    private double pushedScopeRate = 0.5;
+
+    /** Average number of entities owned by each member organization. Default value: 4. */
+    private int entitiesPerMember = 4;
+
+    /** Base64-encoded bodies of the certificates to embed, loaded on first use. */
+    @Nullable private List<String> certificates;
+
+    /**
+     * Sets the seed for the random number generator.
+     *
+     * @param newSeed the seed
+     */
+    public void setSeed(final long newSeed) {
+        seed = newSeed;
+    }
+
+    /**
+     * Sets the number of entities to generate.
+     *
+     * @param count number of entities
+     */
+    public void setEntityCount(final int count) {
+        entityCount = count;
+    }
+
+    /**
+     * Sets the proportion of entities which are identity providers; the rest are service providers.
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setIdentityProviderRate(final double rate) {
+        identityProviderRate = rate;
+    }
+
+    /**
+     * Sets the proportion of entities registered by a foreign registration authority.
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setForeignRate(final double rate) {
+        foreignRate = rate;
+    }
+
+    /**
+     * Sets the proportion of entities which reuse the <code>ID</code> of an earlier entity.
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setDuplicateIdRate(final double rate) {
+        duplicateIdRate = rate;
+    }
+
+    /**
+     * Sets the proportion of identity providers which reuse the name of an earlier identity provider.
+     *
+     * <p>
+     * Half of the reused names differ from the original in case only.
+     * </p>
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setDuplicateDisplayNameRate(final double rate) {
+        duplicateDisplayNameRate = rate;
+    }
+
+    /**
+     * Sets whether only foreign identity providers reuse the names of earlier UK identity providers.
+     *
+     * <p>
+     * This is the only kind of duplicate that {@link IdPDisplayNameDuplicateAvoidingStage} can
+     * resolve; any other kind causes that stage to fail.
+     * </p>
+     *
+     * @param foreignOnly whether only foreign identity providers have duplicate names
+     */
+    public void setForeignDuplicatesOnly(final boolean foreignOnly) {
+        foreignDuplicatesOnly = foreignOnly;
+    }
+
+    /**
+     * Sets the proportion of identity providers named by an <code>mdui:DisplayName</code>.
+     *
+     * <p>
+     * The remainder are named only by their <code>md:OrganizationDisplayName</code>.
+     * </p>
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setMduiRate(final double rate) {
+        mduiRate = rate;
+    }
+
+    /**
+     * Sets the proportion of entities carrying a <code>ukfedlabel:DisableFlow</code> extension.
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setDisableFlowRate(final double rate) {
+        disableFlowRate = rate;
+    }
+
+    /**
+     * Sets the proportion of entities carrying a <code>ukfedlabel:EnableFlow</code> extension.
+     *
+     * <p>
+     * No entity carries both kinds of flow constraint, so the sum of this and the
+     * disable flow rate should not exceed 1.
+     * </p>
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setEnableFlowRate(final double rate) {
+        enableFlowRate = rate;
+    }
+
+    /**
+     * Sets the proportion of UK identity providers which have a pushed scope in members.xml.
+     *
+     * @param rate proportion between 0 and 1
+     */
+    public void setPushedScopeRate(final double rate) {
+        pushedScopeRate = rate;
+    }
+
+    /**
+     * Sets the average number of entities owned by each member organization.
+     *
+     * @param count average number of entities per member
+     */
+    public void setEntitiesPerMember(final int count) {
+        entitiesPerMember = count;
+    }
+
+    /**
+     * Returns the name of the member organization with the given index.
+     *
+     * @param member index of the member organization
+     * @return the organization's name
+     */
+    @Nonnull public static String organizationName(final int member) {
+        return "Organization " + member;
+    }
+
+    /**
+     * Returns the <code>orgID</code> of the member organization with the given index.
+     *
+     * @param member index of the member organization
+     * @return the organization's <code>orgID</code>
+     */
+    @Nonnull public static String organizationID(final int member) {
+        return "ukforg" + member;
+    }
+
+    /**
+     * Generate the entities in the aggregate.
+     *
+     * @return list of {@link Item}s, one per entity, with no item metadata
+     */
+    @Nonnull @NonnullElements public List<Item<Element>> generateItems() {
+        final List<Item<Element>> items = new ArrayList<>(entityCount);
+        for (final EntitySpec spec : specify()) {
+            items.add(new DOMElementItem(entity(spec)));
+        }
+        return items;
+    }
+
+    /**
+     * Generate a members.xml document describing the owners of the aggregate's entities.
+     *
+     * <p>
+     * Only UK-registered entities have owners. Each member organization owning an identity
+     * provider selected for a pushed scope is given a <code>Scopes</code> element for that entity.
+     * </p>
+     *
+     * @return members.xml {@link Document}
+     */
+    @Nonnull public Document generateMembers() {
+        final List<EntitySpec> specs = specify();
+        int memberCount = 0;
+        for (final EntitySpec spec : specs) {
+            memberCount = Math.max(memberCount, spec.member + 1);
+        }
+
+        final Document doc = newDocument();
+        final Element members = element(doc, MEMBERS_NS, "Members");
+        doc.appendChild(members);
+        final List<Element> memberElements = new ArrayList<>(memberCount);
+        for (int member = 0; member < memberCount; member++) {
+            final Element m = child(members, MEMBERS_NS, "Member");
+            m.setAttributeNS(null, "ID", organizationID(member));
+            text(child(m, MEMBERS_NS, "Name"), organizationName(member));
+            text(child(m, MEMBERS_NS, "JoinDate"), "2011-01-01");
+            memberElements.add(m);
+        }
+        for (final EntitySpec spec : specs) {
+            if (spec.pushedScope != null) {
+                final Element scopes = child(memberElements.get(spec.member), MEMBERS_NS, "Scopes");
+                text(child(scopes, MEMBERS_NS, "Entity"), spec.entityID);
+                text(child(scopes, MEMBERS_NS, "Scope"), spec.pushedScope);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Make all of the random choices for the aggregate, starting again from the seed.
+     *
+     * @return one {@link EntitySpec} per entity, in aggregate order
+     */
+    @Nonnull @NonnullElements private List<EntitySpec> specify() {
+        final Random random = new Random(seed);
+        final List<EntitySpec> specs = new ArrayList<>(entityCount);
+        final List<String> idpNames = new ArrayList<>();
+        final List<String> ukIdpNames = new ArrayList<>();
+        int member = 0;
+        int memberRemaining = 1 + random.nextInt(2 * entitiesPerMember - 1);
+        for (int index = 0; index < entityCount; index++) {
+            final EntitySpec spec = new EntitySpec();
+            spec.idp = random.nextDouble() < identityProviderRate;
+            spec.entityID = "https://" + (spec.idp ? "idp" : "sp") + index + ".example.org/shibboleth";
+
+            final int number = index > 0 && random.nextDouble() < duplicateIdRate ? random.nextInt(index) : index;
+            spec.id = String.format("uk%06d", number % 1000000);
+
+            if (random.nextDouble() < foreignRate) {
+                spec.authority = FOREIGN_AUTHORITIES[random.nextInt(FOREIGN_AUTHORITIES.length)];
+                spec.member = -1;
+            } else {
+                spec.authority = UK_AUTHORITY;
+                if (memberRemaining == 0) {
+                    member++;
+                    memberRemaining = 1 + random.nextInt(2 * entitiesPerMember - 1);
+                }
+                memberRemaining--;
+                spec.member = member;
+            }
+
+            // an entity may not have both kinds of flow constraint
+            final double flowChoice = random.nextDouble();
+            if (flowChoice < disableFlowRate) {
+                spec.disableFlow = FLOWS[random.nextInt(FLOWS.length)];
+            } else if (flowChoice < disableFlowRate + enableFlowRate) {
+                spec.enableFlow = FLOWS[random.nextInt(FLOWS.length)];
+            }
+
+            spec.name = (spec.idp ? "Identity Provider " : "Service ") + index;
+            if (spec.idp) {
+                final List<String> candidates = foreignDuplicatesOnly ? ukIdpNames : idpNames;
+                final boolean mayDuplicate = spec.member < 0 || !foreignDuplicatesOnly;
+                if (mayDuplicate && !candidates.isEmpty() && random.nextDouble() < duplicateDisplayNameRate) {
+                    final String original = candidates.get(random.nextInt(candidates.size()));
+                    spec.name = random.nextBoolean() ? original : original.toUpperCase(Locale.ENGLISH);
+                }
+                idpNames.add(spec.name);
+                if (spec.member >= 0) {
+                    ukIdpNames.add(spec.name);
+                }
+                spec.mdui = random.nextDouble() < mduiRate;
+                if (spec.member >= 0 && random.nextDouble() < pushedScopeRate) {
+                    spec.pushedScope = "idp" + index + ".example.org";
+                }
+            } else {
+                spec.mdui = true;
+            }
+
+            spec.certificate = random.nextInt(CERTIFICATE_PATHS.length);
+            spec.contact = "mailto:contact" + index + "@example.org";
+            specs.add(spec);
+        }
+        return specs;
+    }
+
+    /**
+     * Build a single entity.
+     *
+     * @param spec the entity's specification
+     * @return the entity's <code>EntityDescriptor</code> element
+     */
+    @Nonnull private Element entity(@Nonnull final EntitySpec spec) {
+        final Document doc = newDocument();
+        final Element entity = element(doc, SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+        doc.appendChild(entity);
+        entity.setAttributeNS(null, "ID", spec.id);
+        entity.setAttributeNS(null, "entityID", spec.entityID);
+
+        final Element extensions = child(entity, SAMLMetadataSupport.MD_NS, "md:Extensions");
+        if (spec.member >= 0) {
+            child(extensions, UKFedLabelSupport.UKFEDLABEL_NS, "ukfedlabel:UKFederationMember")
+                    .setAttributeNS(null, "orgID", organizationID(spec.member));
+        }
+        if (spec.disableFlow != null) {
+            child(extensions, UKFedLabelSupport.UKFEDLABEL_NS, "ukfedlabel:DisableFlow")
+                    .setAttributeNS(null, "flow", spec.disableFlow);
+        }
+        if (spec.enableFlow != null) {
+            child(extensions, UKFedLabelSupport.UKFEDLABEL_NS, "ukfedlabel:EnableFlow")
+                    .setAttributeNS(null, "flow", spec.enableFlow);
+        }
+        child(extensions, MDRPI_NS, "mdrpi:RegistrationInfo")
+                .setAttributeNS(null, "registrationAuthority", spec.authority);
+
+        final Element role = child(entity, SAMLMetadataSupport.MD_NS,
+                spec.idp ? "md:IDPSSODescriptor" : "md:SPSSODescriptor");
+        role.setAttributeNS(null, "protocolSupportEnumeration", "urn:oasis:names:tc:SAML:2.0:protocol");
+        final Element roleExtensions = child(role, SAMLMetadataSupport.MD_NS, "md:Extensions");
+        if (spec.idp) {
+            text(child(roleExtensions, ShibbolethMetadataSupport.SHIBMD_NS, "shibmd:Scope"),
+                    spec.entityID.substring("https://".length(), spec.entityID.indexOf('/', "https://".length())))
+                    .setAttributeNS(null, "regexp", "false");
+        }
+        if (spec.mdui) {
+            final Element uiInfo = child(roleExtensions, MDUISupport.MDUI_NS, "mdui:UIInfo");
+            english(text(child(uiInfo, MDUISupport.MDUI_NS, "mdui:DisplayName"), spec.name));
+        }
+        final Element x509Data = child(child(child(role, SAMLMetadataSupport.MD_NS, "md:KeyDescriptor"),
+                DS_NS, "ds:KeyInfo"), DS_NS, "ds:X509Data");
+        text(child(x509Data, DS_NS, "ds:X509Certificate"), certificate(spec.certificate));
+
+        final String orgName = spec.member >= 0 ? organizationName(spec.member) : "Foreign " + spec.entityID;
+        final Element org = child(entity, SAMLMetadataSupport.MD_NS, "md:Organization");
+        english(text(child(org, SAMLMetadataSupport.MD_NS, "md:OrganizationName"), orgName));
+        english(text(child(org, SAMLMetadataSupport.MD_NS, "md:OrganizationDisplayName"),
+                spec.mdui ? orgName : spec.name));
+        english(text(child(org, SAMLMetadataSupport.MD_NS, "md:OrganizationURL"), "https://www.example.org/"));
+
+        final Element contact = child(entity, SAMLMetadataSupport.MD_NS, "md:ContactPerson");
+        contact.setAttributeNS(null, "contactType", "technical");
+        text(child(contact, SAMLMetadataSupport.MD_NS, "md:EmailAddress"), spec.contact);
+        return entity;
+    }
+
+    /**
+     * Returns the Base64 body of one of the embedded certificates.
+     *
+     * @param which index of the certificate
+     * @return Base64-encoded certificate, without PEM armour or line breaks
+     */
+    @Nonnull private String certificate(final int which) {
+        if (certificates == null) {
+            final List<String> certs = new ArrayList<>(CERTIFICATE_PATHS.length);
+            for (final String path : CERTIFICATE_PATHS) {
+                try (InputStream in = AggregateGenerator.class.getResourceAsStream(path)) {
+                    if (in == null) {
+                        throw new IllegalStateException(path + " is not available");
+                    }
+                    final String pem = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+                    certs.add(pem.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", ""));
+                } catch (final IOException e) {
+                    throw new IllegalStateException("could not read " + path, e);
+                }
+            }
+            certificates = certs;
+        }
+        return certificates.get(which);
+    }
+
+    /**
+     * Create a new, empty, namespace-aware DOM {@link Document}.
+     *
+     * @return a new {@link Document}
+     */
+    @Nonnull private static Document newDocument() {
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().newDocument();
+        } catch (final ParserConfigurationException e) {
+            throw new IllegalStateException("could not create DOM document", e);
+        }
+    }
+
+    /**
+     * Create a namespaced element.
+     *
+     * @param doc owning {@link Document}
+     * @param ns namespace URI
+     * @param qualifiedName qualified name, including prefix
+     * @return the new {@link Element}
+     */
+    @Nonnull private static Element element(@Nonnull final Document doc, @Nonnull final String ns,
+            @Nonnull final String qualifiedName) {
+        return doc.createElementNS(ns, qualifiedName);
+    }
+
+    /**
+     * Create a namespaced element and append it to a parent.
+     *
+     * @param parent parent {@link Element}
+     * @param ns namespace URI
+     * @param qualifiedName qualified name, including prefix
+     * @return the new {@link Element}
+     */
+    @Nonnull private static Element child(@Nonnull final Element parent, @Nonnull final String ns,
+            @Nonnull final String qualifiedName) {
+        final Element child = element(parent.getOwnerDocument(), ns, qualifiedName);
+        parent.appendChild(child);
+        return child;
+    }
+
+    /**
+     * Mark an element as being in English.
+     *
+     * @param element {@link Element} to modify
+     */
+    private static void english(@Nonnull final Element element) {
+        element.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", "en");
+    }
+
+    /**
+     * Set an element's text content.
+     *
+     * @param element {@link Element} to modify
+     * @param text new text content
+     * @return the {@link Element}
+     */
+    @Nonnull private static Element text(@Nonnull final Element element, @Nonnull final String text) {
+        element.setTextContent(text);
+        return element;
+    }
+
+    /** The random choices made for a single entity. */
+    private static final class EntitySpec {
+
+        /** Whether the entity is an identity provider. */
+        private boolean idp;
+
+        /** The entity's <code>entityID</code>. */
+        private String entityID;
+
+        /** The entity's <code>ID</code> attribute value. */
+        private String id;
+
+        /** The entity's registration authority. */
+        private String authority;
+
+        /** Index of the owning member organization, or -1 for a foreign entity. */
+        private int member;
+
+        /** Flow named in a <code>DisableFlow</code> extension, if any. */
+        @Nullable private String disableFlow;
+
+        /** Flow named in an <code>EnableFlow</code> extension, if any. */
+        @Nullable private String enableFlow;
+
+        /** The entity's display name. */
+        private String name;
+
+        /** Whether the display name is given by an <code>mdui:DisplayName</code>. */
+        private boolean mdui;
+
+        /** Pushed scope for the entity, if any. */
+        @Nullable private String pushedScope;
+
+        /** Index of the embedded certificate. */
+        private int certificate;
+
+        /** The entity's contact e-mail address. */
+        private String contact;
+    }
+
+}
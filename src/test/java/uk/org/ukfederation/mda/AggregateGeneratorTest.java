@@ -0,0 +1,111 @@
+package uk.org.ukfederation.mda;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import uk.org.ukfederation.members.Members;
+
+public class AggregateGeneratorTest extends BaseDOMTest {
+
+    /** Constructor sets class under test. */
+    public AggregateGeneratorTest() {
+        super(AggregateGenerator.class);
+    }
+
+    private AggregateGenerator makeGenerator(final long seed) {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(seed);
+        generator.setEntityCount(2000);
+        generator.setForeignRate(0.2);
+        generator.setDuplicateIdRate(0.01);
+        generator.setDuplicateDisplayNameRate(0.05);
+        generator.setDisableFlowRate(0.1);
+        generator.setEnableFlowRate(0.1);
+        return generator;
+    }
+
+    private String serialize(final List<Item<Element>> items) {
+        final StringBuilder b = new StringBuilder();
+        for (final Item<Element> item : items) {
+            b.append(SerializeSupport.nodeToString(item.unwrap()));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Test that the same seed always generates the same aggregate, and that a
+     * different seed generates a different one.
+     */
+    @Test
+    public void testDeterministic() {
+        final String first = serialize(makeGenerator(1).generateItems());
+        final String second = serialize(makeGenerator(1).generateItems());
+        final String other = serialize(makeGenerator(2).generateItems());
+        Assert.assertEquals(second, first);
+        Assert.assertNotEquals(other, first);
+    }
+
+    /**
+     * Test that the requested proportions of duplicate IDs and foreign entities are
+     * roughly respected.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testRates() throws Exception {
+        final List<Item<Element>> items = generateDOMItems(makeGenerator(3));
+        Assert.assertEquals(items.size(), 2000);
+
+        int duplicates = 0;
+        int foreign = 0;
+        for (final Item<Element> item : items) {
+            final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
+            if (ukids.isEmpty()) {
+                // the UK ID population stage has flagged a duplicate
+                Assert.assertEquals(countErrors(item), 1);
+                duplicates++;
+            }
+            final List<RegistrationAuthority> auths = item.getItemMetadata().get(RegistrationAuthority.class);
+            Assert.assertEquals(auths.size(), 1);
+            if (!auths.get(0).getRegistrationAuthority().equals("http://ukfederation.org.uk")) {
+                foreign++;
+            }
+        }
+        Assert.assertTrue(duplicates > 5 && duplicates < 40, "duplicates: " + duplicates);
+        Assert.assertTrue(foreign > 300 && foreign < 500, "foreign: " + foreign);
+    }
+
+    /**
+     * Test that the generated members.xml is consistent with the entities, and
+     * can be loaded by the members API.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testMembers() throws Exception {
+        final AggregateGenerator generator = makeGenerator(4);
+        final List<Item<Element>> items = generator.generateItems();
+        final Document doc = generator.generateMembers();
+        final Members members = new Members(doc);
+
+        int scoped = 0;
+        for (final Item<Element> item : items) {
+            final String entityID = item.unwrap().getAttributeNS(null, "entityID");
+            final List<String> scopes = members.scopesForEntity(entityID);
+            if (scopes != null) {
+                scoped++;
+                Assert.assertTrue(entityID.startsWith("https://idp"));
+            }
+        }
+        Assert.assertTrue(scoped > 0);
+        Assert.assertNotNull(members.getMemberByName(AggregateGenerator.organizationName(0)));
+    }
+
+}
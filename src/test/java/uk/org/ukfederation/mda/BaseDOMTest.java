@@ -22,6 +22,9 @@ import java.io.StringReader;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 
@@ -48,6 +51,8 @@ import org.testng.annotations.BeforeClass;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import uk.org.ukfederation.mda.pipeline.AbstractParallelStage;
+
 /** A base class for DOM related tests. */
 public abstract class BaseDOMTest extends BaseTest {
 
@@ -152,6 +157,63 @@ public abstract class BaseDOMTest extends BaseTest {
         return items;
     }
 
+    /**
+     * Generates a synthetic aggregate and returns its entities as a list of new {@link DOMElementItem}s.
+     *
+     * <p>
+     * As with {@link #readDOMItems(String[])}, a series of stages are run on the collection
+     * to extract entity identifiers and registration authorities for later use.
+     * </p>
+     *
+     * @param generator configured {@link AggregateGenerator}
+     * @return list of {@link Item}s
+     * @throws StageProcessingException if one of the post-processing steps fails
+     * @throws ComponentInitializationException if one of the post-processing stages can't be initialized
+     */
+    @Nonnull @NonnullElements
+    protected List<Item<Element>> generateDOMItems(@Nonnull final AggregateGenerator generator)
+            throws StageProcessingException, ComponentInitializationException {
+        final List<Item<Element>> items = generator.generateItems();
+        populateIdentifiers(items);
+        populateUKIdentifiers(items);
+        populateRegistrationAuthorities(items);
+        return items;
+    }
+
+    /**
+     * Executes a stage sequentially and in parallel on two copies of the same item collection,
+     * and checks that both have the same effect.
+     *
+     * @param items source of a new copy of the item collection for each execution
+     * @param stages source of a new stage for each execution, configured but not initialized
+     * @param describe function describing the effect of the stage on the item collection
+     * @return the description of the sequential results, so that callers can check that the
+     *      collection exercised the stage
+     * @throws Exception if the items can not be created or a stage fails
+     */
+    @Nonnull
+    protected List<String> assertParallelSameAsSequential(@Nonnull final Callable<List<Item<Element>>> items,
+            @Nonnull final Callable<? extends AbstractParallelStage<Element>> stages,
+            @Nonnull final Function<List<Item<Element>>, List<String>> describe) throws Exception {
+        final List<Item<Element>> sequentialItems = items.call();
+        final AbstractParallelStage<Element> sequential = stages.call();
+        sequential.initialize();
+        sequential.execute(sequentialItems);
+        sequential.destroy();
+
+        final List<Item<Element>> parallelItems = items.call();
+        final AbstractParallelStage<Element> parallel = stages.call();
+        parallel.setExecutorService(ForkJoinPool.commonPool());
+        parallel.setChunkSize(97);
+        parallel.initialize();
+        parallel.execute(parallelItems);
+        parallel.destroy();
+
+        final List<String> expected = describe.apply(sequentialItems);
+        Assert.assertEquals(describe.apply(parallelItems), expected);
+        return expected;
+    }
+
     /**
      * Checks whether two nodes are equal based on {@link Node#isEqualNode(Node)}. Both nodes are serialized, re-parsed,
      * and then compared for equality. This forces any changes made to the document that haven't yet been represented in
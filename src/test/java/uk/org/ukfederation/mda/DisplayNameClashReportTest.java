@@ -0,0 +1,108 @@
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class DisplayNameClashReportTest {
+
+    private DisplayNameClashReport makeReport(final Writer writer, final DisplayNameClashReport.Format format)
+            throws ComponentInitializationException {
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.setWriter(writer);
+        report.setFormat(format);
+        report.initialize();
+        return report;
+    }
+
+    @Test
+    public void testJSONLines() throws Exception {
+        final StringWriter writer = new StringWriter();
+        final DisplayNameClashReport report = makeReport(writer, DisplayNameClashReport.Format.JSON_LINES);
+        report.start();
+        report.record("similar", "Say \"hi\"\\", "a", "tab\there", "b", "0.90");
+        report.finish();
+        Assert.assertEquals(writer.toString(),
+                "{\"action\":\"similar\",\"name\":\"Say \\\"hi\\\"\\\\\",\"entity\":\"a\"," +
+                "\"otherName\":\"tab\\there\",\"otherEntity\":\"b\",\"detail\":\"0.90\"}\n");
+    }
+
+    @Test
+    public void testCSV() throws Exception {
+        final StringWriter writer = new StringWriter();
+        final DisplayNameClashReport report = makeReport(writer, DisplayNameClashReport.Format.CSV);
+        report.start();
+        report.record("duplicate", "Example, Inc.", "a", "Say \"hi\"", "b", null);
+        report.finish();
+
+        // the header is only written once to a writer
+        report.start();
+        report.record("duplicate", "x", "c", "x", "d", null);
+        report.finish();
+
+        Assert.assertEquals(writer.toString(),
+                "action,name,entity,otherName,otherEntity,detail\r\n" +
+                "duplicate,\"Example, Inc.\",a,\"Say \"\"hi\"\"\",b,\r\n" +
+                "duplicate,x,c,x,d,\r\n");
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        final File file = File.createTempFile("clashes", ".jsonl");
+        try {
+            final DisplayNameClashReport report = new DisplayNameClashReport();
+            report.setFile(file);
+            report.initialize();
+
+            report.start();
+            report.record("duplicate", "x", "a", "x", "b", null);
+            report.finish();
+
+            // each execution replaces the file
+            report.start();
+            report.record("duplicate", "y", "c", "y", "d", null);
+            report.finish();
+            report.destroy();
+
+            Assert.assertEquals(Files.readString(file.toPath(), StandardCharsets.UTF_8),
+                    "{\"action\":\"duplicate\",\"name\":\"y\",\"entity\":\"c\"," +
+                    "\"otherName\":\"y\",\"otherEntity\":\"d\",\"detail\":\"\"}\n");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWriteFailure() throws Exception {
+        final Writer broken = new Writer() {
+            public void write(final char[] cbuf, final int off, final int len) throws IOException {
+                throw new IOException("broken");
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+        final DisplayNameClashReport report = makeReport(broken, DisplayNameClashReport.Format.JSON_LINES);
+        report.start();
+        report.record("duplicate", "x", "a", "x", "b", null);
+        report.finish();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoDestination() throws Exception {
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.initialize();
+    }
+
+}
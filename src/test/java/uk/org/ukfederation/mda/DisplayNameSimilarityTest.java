@@ -0,0 +1,89 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DisplayNameSimilarityTest {
+
+    @Test
+    public void testNormalise() {
+        Assert.assertEquals(DisplayNameSimilarity.normalise("The University of Example"), "example university");
+        Assert.assertEquals(DisplayNameSimilarity.normalise("Example University"), "example university");
+        Assert.assertEquals(DisplayNameSimilarity.normalise("Universit\u00e9 de Montr\u00e9al"), "montreal universite");
+        Assert.assertEquals(DisplayNameSimilarity.normalise("  Example-University, (Test) "),
+                "example test university");
+        Assert.assertEquals(DisplayNameSimilarity.normalise("The"), "");
+    }
+
+    @Test
+    public void testFindSimilar() {
+        final List<String> names = new ArrayList<>();
+        names.add(DisplayNameSimilarity.normalise("Example University"));
+        names.add(DisplayNameSimilarity.normalise("Other College"));
+        names.add(DisplayNameSimilarity.normalise("Exampel University"));
+        names.add(DisplayNameSimilarity.normalise("Completely Different"));
+
+        final List<DisplayNameSimilarity.Match> matches = DisplayNameSimilarity.findSimilar(names, 0.6);
+        Assert.assertEquals(matches.size(), 1);
+        final DisplayNameSimilarity.Match match = matches.get(0);
+        Assert.assertEquals(match.getFirst(), 0);
+        Assert.assertEquals(match.getSecond(), 2);
+        Assert.assertTrue(match.getSimilarity() >= 0.6 && match.getSimilarity() < 1.0);
+    }
+
+    /**
+     * Test that a threshold small enough to round to nothing compares every pair sharing a trigram.
+     */
+    @Test
+    public void testTinyThreshold() {
+        final List<String> names = new ArrayList<>();
+        names.add(DisplayNameSimilarity.normalise("Example University"));
+        names.add(DisplayNameSimilarity.normalise("Other College"));
+        names.add(DisplayNameSimilarity.normalise("Exampel University"));
+        names.add(DisplayNameSimilarity.normalise("Zz"));
+
+        final List<DisplayNameSimilarity.Match> matches = DisplayNameSimilarity.findSimilar(names, 1e-10);
+        Assert.assertEquals(matches.size(), 1);
+        Assert.assertEquals(matches.get(0).getFirst(), 0);
+        Assert.assertEquals(matches.get(0).getSecond(), 2);
+    }
+
+    /**
+     * Test that the prefix-filtered search finds the same pairs as an exhaustive one.
+     */
+    @Test
+    public void testAgainstExhaustive() {
+        final String[] words = {"north", "south", "east", "west", "city", "college", "university", "institute",
+                "technology", "arts", "science", "royal", "new"};
+        final java.util.Random random = new Random(14);
+        final List<String> names = new ArrayList<>();
+        while (names.size() < 400) {
+            final StringBuilder b = new StringBuilder();
+            for (int w = 0; w < 2 + random.nextInt(3); w++) {
+                b.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            final String name = DisplayNameSimilarity.normalise(b.toString());
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+
+        final double threshold = 0.7;
+        final List<DisplayNameSimilarity.Match> matches = DisplayNameSimilarity.findSimilar(names, threshold);
+
+        // with a tiny threshold, every pair sharing a trigram is a candidate
+        int expected = 0;
+        for (final DisplayNameSimilarity.Match match : DisplayNameSimilarity.findSimilar(names, 0.001)) {
+            if (match.getSimilarity() >= threshold) {
+                expected++;
+            }
+        }
+        Assert.assertEquals(matches.size(), expected);
+        Assert.assertTrue(expected > 0);
+    }
+
+}
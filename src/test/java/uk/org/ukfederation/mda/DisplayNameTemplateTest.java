@@ -0,0 +1,43 @@
+package uk.org.ukfederation.mda;
+
+import java.text.MessageFormat;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DisplayNameTemplateTest {
+
+    private void check(final String pattern) {
+        final String expected = new MessageFormat(pattern).format(new Object[] {"Old Name", "DK"});
+        // the template must append to, and not replace, what is already in the builder
+        final StringBuilder builder = new StringBuilder("prefix");
+        Assert.assertEquals(DisplayNameTemplate.compile(pattern).appendTo(builder, "Old Name", "DK").toString(),
+                "prefix" + expected, pattern);
+    }
+
+    @Test
+    public void testSameAsMessageFormat() {
+        check("[{1}] {0}");
+        check("{0} ({1})");
+        check("{0}");
+        check("no arguments");
+        check("");
+        check("{1}{0}{1}");
+        check("it''s {0}");
+        check("'{0}' is {0}");
+        check("'it''s' {0} '{1}'");
+        check("{0} and {2}");
+        check("{0} 'unterminated {1}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnmatchedBrace() {
+        DisplayNameTemplate.compile("[{1] {0}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFormatType() {
+        DisplayNameTemplate.compile("{0,number}");
+    }
+
+}
@@ -0,0 +1,128 @@
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+
+public class EntityDescriptorUKIdPopulationStageTest extends BaseDOMTest {
+
+    /** Constructor sets class under test. */
+    public EntityDescriptorUKIdPopulationStageTest() {
+        super(EntityDescriptorUKIdPopulationStage.class);
+    }
+
+    private Item<Element> makeItem(final String id, final String entityID) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document doc = factory.newDocumentBuilder().newDocument();
+        final Element entity = doc.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+        doc.appendChild(entity);
+        entity.setAttributeNS(null, "entityID", entityID);
+        if (id != null) {
+            entity.setAttributeNS(null, "ID", id);
+        }
+        return new DOMElementItem(entity);
+    }
+
+    @Test
+    public void testStage() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(makeItem("uk000001", "https://one.example.org/"));
+        items.add(makeItem(null, "https://two.example.org/"));
+        items.add(makeItem("uk00001", "https://three.example.org/"));
+        items.add(makeItem("uk000001", "https://four.example.org/"));
+        items.add(makeItem("uk000002", "https://five.example.org/"));
+        populateUKIdentifiers(items);
+
+        Assert.assertEquals(items.get(0).getItemMetadata().get(UKId.class).get(0).getId(), "uk000001");
+        Assert.assertEquals(items.get(4).getItemMetadata().get(UKId.class).get(0).getId(), "uk000002");
+        Assert.assertEquals(countErrors(items.get(0)), 0);
+        Assert.assertEquals(countErrors(items.get(4)), 0);
+
+        for (int i = 1; i <= 3; i++) {
+            Assert.assertTrue(items.get(i).getItemMetadata().get(UKId.class).isEmpty());
+            Assert.assertEquals(countErrors(items.get(i)), 1);
+        }
+        final ErrorStatus missing = items.get(1).getItemMetadata().get(ErrorStatus.class).get(0);
+        Assert.assertTrue(missing.getStatusMessage().contains("did not have an ID attribute"));
+        final ErrorStatus bad = items.get(2).getItemMetadata().get(ErrorStatus.class).get(0);
+        Assert.assertTrue(bad.getStatusMessage().contains("does not look like a UK federation identifier"));
+        final ErrorStatus dup = items.get(3).getItemMetadata().get(ErrorStatus.class).get(0);
+        Assert.assertTrue(dup.getStatusMessage().contains("duplicate ID value uk000001"));
+    }
+
+    private List<String> describe(final List<Item<Element>> items) {
+        final List<String> results = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
+            final List<ErrorStatus> errors = item.getItemMetadata().get(ErrorStatus.class);
+            results.add(ukids.size() + "/" + (ukids.isEmpty() ? "" : ukids.get(0).getId()) + "/" +
+                    (errors.isEmpty() ? "" : errors.get(0).getStatusMessage()));
+        }
+        return results;
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(5);
+        generator.setEntityCount(5000);
+        generator.setDuplicateIdRate(0.05);
+
+        final List<String> expected = assertParallelSameAsSequential(generator::generateItems, () -> {
+            final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+            stage.setId("ukid");
+            return stage;
+        }, this::describe);
+        Assert.assertTrue(expected.stream().anyMatch(s -> s.contains("duplicate ID value")));
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        final File file = File.createTempFile("ukids", ".reg");
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+        final UKIdRegistry registry = new UKIdRegistry();
+        registry.setFile(file);
+        registry.initialize();
+
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("ukid");
+        stage.setIdRegistry(registry);
+        stage.initialize();
+
+        // first run records the IDs
+        final List<Item<Element>> run1 = new ArrayList<>();
+        run1.add(makeItem("uk000001", "https://one.example.org/"));
+        run1.add(makeItem("uk000002", "https://two.example.org/"));
+        stage.execute(run1);
+        Assert.assertEquals(countErrors(run1.get(0)), 0);
+        Assert.assertEquals(countErrors(run1.get(1)), 0);
+
+        // second run moves uk000002 to a different entity
+        final List<Item<Element>> run2 = new ArrayList<>();
+        run2.add(makeItem("uk000001", "https://one.example.org/"));
+        run2.add(makeItem("uk000002", "https://moved.example.org/"));
+        stage.execute(run2);
+        Assert.assertEquals(countErrors(run2.get(0)), 0);
+        Assert.assertEquals(countErrors(run2.get(1)), 1);
+        final String message = run2.get(1).getItemMetadata().get(ErrorStatus.class).get(0).getStatusMessage();
+        Assert.assertTrue(message.contains("previously used by https://two.example.org/"), message);
+
+        stage.destroy();
+        registry.destroy();
+    }
+
+}
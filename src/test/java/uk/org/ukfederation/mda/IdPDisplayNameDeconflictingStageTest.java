@@ -0,0 +1,173 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.StatusMetadata;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import uk.org.ukfederation.mda.pipeline.InstrumentedStage;
+
+public class IdPDisplayNameDeconflictingStageTest extends BaseDOMTest {
+
+    protected IdPDisplayNameDeconflictingStageTest() {
+        super(IdPDisplayNameDeconflictingStage.class);
+    }
+
+    private List<Item<Element>> generate() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(16);
+        generator.setEntityCount(2000);
+        generator.setForeignRate(0.3);
+        generator.setDuplicateDisplayNameRate(0.1);
+        generator.setForeignDuplicatesOnly(true);
+        return generateDOMItems(generator);
+    }
+
+    private IdPDisplayNameDuplicateAvoidingStage makeAvoidingStage(final ExecutorService executor)
+            throws Exception {
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("avoid");
+        stage.setRegistrationAuthorityDisplayNames(Map.of(
+                "https://www.wayf.dk", "DK",
+                "https://incommon.org", "US"));
+        stage.setExecutorService(executor);
+        stage.setChunkSize(97);
+        stage.initialize();
+        return stage;
+    }
+
+    private IdPDisplayNameDuplicateDetectingStage makeDetectingStage(final ExecutorService executor)
+            throws Exception {
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("detect");
+        stage.setIdentificationStrategy(new UKItemIdentificationStrategy<>());
+        stage.setExecutorService(executor);
+        stage.setChunkSize(97);
+        stage.initialize();
+        return stage;
+    }
+
+    private IdPDisplayNameDeconflictingStage makeStage(final Stage<Element> avoidingStage,
+            final Stage<Element> detectingStage, final ExecutorService executor) throws Exception {
+        final IdPDisplayNameDeconflictingStage stage = new IdPDisplayNameDeconflictingStage();
+        stage.setId("test");
+        stage.setAvoidingStage(avoidingStage);
+        stage.setDetectingStage(detectingStage);
+        stage.setExecutorService(executor);
+        stage.setChunkSize(97);
+        stage.initialize();
+        return stage;
+    }
+
+    private List<String> describe(final List<Item<Element>> items) {
+        final List<String> result = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            result.add(SerializeSupport.nodeToString(item.unwrap()));
+            for (final StatusMetadata status : item.getItemMetadata().get(StatusMetadata.class)) {
+                result.add(status.getClass().getSimpleName() + " " + status.getComponentId() +
+                        ": " + status.getStatusMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that executing the combined stage has the same effect as executing the
+     * two stages it combines in sequence.
+     *
+     * @param stage the combined stage
+     * @throws Exception if something goes wrong
+     */
+    private void assertSameAsSequence(final IdPDisplayNameDeconflictingStage stage) throws Exception {
+        final List<Item<Element>> expectedItems = generate();
+        makeAvoidingStage(null).execute(expectedItems);
+        makeDetectingStage(null).execute(expectedItems);
+
+        final List<Item<Element>> items = generate();
+        stage.execute(items);
+
+        // make sure the aggregate exercises both stages
+        int infos = 0;
+        int errors = 0;
+        for (final Item<Element> item : items) {
+            infos += item.getItemMetadata().get(InfoStatus.class).size();
+            errors += item.getItemMetadata().get(ErrorStatus.class).size();
+        }
+        Assert.assertTrue(infos > 0, "no names were changed");
+        Assert.assertTrue(errors > 0, "no duplicates were detected");
+
+        Assert.assertEquals(describe(items), describe(expectedItems));
+
+        // the shared index is not left behind
+        Assert.assertTrue(items.get(0).getItemMetadata().get(DisplayNameIndex.class).isEmpty());
+    }
+
+    @Test
+    public void testSameAsSequence() throws Exception {
+        assertSameAsSequence(makeStage(makeAvoidingStage(null), makeDetectingStage(null), null));
+    }
+
+    @Test
+    public void testParallelSameAsSequence() throws Exception {
+        final ExecutorService executor = ForkJoinPool.commonPool();
+        assertSameAsSequence(makeStage(makeAvoidingStage(executor), makeDetectingStage(null), executor));
+        assertSameAsSequence(makeStage(makeAvoidingStage(null), makeDetectingStage(executor), executor));
+        assertSameAsSequence(makeStage(makeAvoidingStage(executor), makeDetectingStage(executor), null));
+    }
+
+    private InstrumentedStage<Element> instrument(final Stage<Element> stage) throws Exception {
+        final InstrumentedStage<Element> instrumented = new InstrumentedStage<>();
+        instrumented.setId("instrumented-" + stage.getId());
+        instrumented.setStage(stage);
+        instrumented.initialize();
+        return instrumented;
+    }
+
+    @Test
+    public void testWrappedStages() throws Exception {
+        assertSameAsSequence(makeStage(instrument(makeAvoidingStage(null)),
+                instrument(makeDetectingStage(null)), null));
+    }
+
+    @Test
+    public void testOtherCollection() throws Exception {
+        // an index built for a different collection is ignored, even if attached to the first item
+        final List<Item<Element>> items = generate();
+        final List<Item<Element>> indexed = items.subList(0, items.size() - 1);
+        final boolean[] entities = new boolean[indexed.size()];
+        final List<List<Element>> nameElements = new ArrayList<>(Collections.nCopies(indexed.size(), null));
+        final DisplayNameIndex index = new DisplayNameIndex(indexed, entities, nameElements);
+        items.get(0).getItemMetadata().put(index);
+        makeAvoidingStage(null).execute(items);
+        makeDetectingStage(null).execute(items);
+        items.get(0).getItemMetadata().remove(index);
+
+        final List<Item<Element>> expectedItems = generate();
+        makeAvoidingStage(null).execute(expectedItems);
+        makeDetectingStage(null).execute(expectedItems);
+        Assert.assertEquals(describe(items), describe(expectedItems));
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testUninitializedStage() throws Exception {
+        final IdPDisplayNameDeconflictingStage stage = new IdPDisplayNameDeconflictingStage();
+        stage.setId("test");
+        stage.setAvoidingStage(new IdPDisplayNameDuplicateAvoidingStage());
+        stage.setDetectingStage(makeDetectingStage(null));
+        stage.initialize();
+    }
+
+}
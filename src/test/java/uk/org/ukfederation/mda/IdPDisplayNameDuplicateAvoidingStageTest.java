@@ -1,10 +1,14 @@
 
 package uk.org.ukfederation.mda;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nonnull;
 import javax.xml.namespace.QName;
@@ -17,8 +21,11 @@ import org.w3c.dom.NodeList;
 import net.shibboleth.metadata.InfoStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
 import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 
 public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
 
@@ -246,4 +253,198 @@ public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
         stage.destroy();
     }
 
+    private List<String> describe(final List<Item<Element>> items) {
+        final List<String> results = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            for (final Element element : extractDiscoveryNameElements(item.unwrap())) {
+                results.add(element.getTextContent());
+            }
+            for (final InfoStatus info : item.getItemMetadata().get(InfoStatus.class)) {
+                results.add(info.getStatusMessage());
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(18);
+        generator.setEntityCount(4000);
+        generator.setIdentityProviderRate(0.8);
+        generator.setForeignRate(0.5);
+        generator.setDuplicateDisplayNameRate(0.1);
+        generator.setForeignDuplicatesOnly(true);
+
+        final List<String> expected = assertParallelSameAsSequential(() -> generateDOMItems(generator), () -> {
+            final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+            stage.setId("test");
+            stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+            return stage;
+        }, this::describe);
+        Assert.assertTrue(expected.stream().anyMatch(s -> s.startsWith("discovery name changed")));
+    }
+
+    /**
+     * Returns the UK and Danish Royal Academy entities, plus a copy of the Danish one
+     * registered by InCommon.
+     */
+    private List<Item<Element>> readThreeAuthorities() throws Exception {
+        final List<Item<Element>> items =
+                readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml", "ram-dk-clash.xml" });
+        final Item<Element> usItem = items.get(2);
+        usItem.getItemMetadata().removeAll(RegistrationAuthority.class);
+        usItem.getItemMetadata().put(new RegistrationAuthority("https://incommon.org"));
+        return items;
+    }
+
+    private List<String> discoveryNames(final Item<Element> item) {
+        final List<String> names = new ArrayList<>();
+        for (final Element element : extractDiscoveryNameElements(item.unwrap())) {
+            names.add(element.getTextContent());
+        }
+        return names;
+    }
+
+    @Test
+    public void protectedAuthorities() throws Exception {
+        final List<Item<Element>> items = readThreeAuthorities();
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setProtectedRegistrationAuthorities(List.of("http://ukfederation.org.uk", "https://www.wayf.dk"));
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.initialize();
+        stage.execute(items);
+
+        Assert.assertEquals(discoveryNames(items.get(0)), List.of("Royal Academy of Music"));
+        Assert.assertEquals(discoveryNames(items.get(1)),
+                List.of("Det Jyske Musikkonservatorium", "[DK] Royal Academy of Music"));
+        Assert.assertEquals(discoveryNames(items.get(2)),
+                List.of("[US] Det Jyske Musikkonservatorium", "[US] Royal Academy of Music"));
+
+        // the same result as a chain of stages, one for each protected authority,
+        // although status metadata is added in document order rather than stage order
+        final List<Item<Element>> chainItems = readThreeAuthorities();
+        for (final String authority : List.of("http://ukfederation.org.uk", "https://www.wayf.dk")) {
+            final IdPDisplayNameDuplicateAvoidingStage chainStage = new IdPDisplayNameDuplicateAvoidingStage();
+            chainStage.setId("test");
+            chainStage.setRegistrationAuthority(authority);
+            chainStage.setRegistrationAuthorityDisplayNames(makeRegMap());
+            chainStage.initialize();
+            chainStage.execute(chainItems);
+        }
+        final List<String> expected = describe(chainItems);
+        final List<String> actual = describe(items);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        Assert.assertEquals(actual, expected);
+
+        stage.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void repeatedProtectedAuthority() throws Exception {
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setProtectedRegistrationAuthorities(List.of("https://www.wayf.dk", "https://www.wayf.dk"));
+        stage.initialize();
+    }
+
+    @Test
+    public void clashReport() throws Exception {
+        final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
+
+        final StringWriter writer = new StringWriter();
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.setWriter(writer);
+        report.initialize();
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.setClashReport(report);
+        stage.initialize();
+        stage.execute(items);
+
+        final String ukId = items.get(0).unwrap().getAttribute("entityID");
+        final String dkId = items.get(1).unwrap().getAttribute("entityID");
+        Assert.assertEquals(writer.toString(),
+                "{\"action\":\"renamed\",\"name\":\"Royal Academy of Music\",\"entity\":\"" + dkId +
+                "\",\"otherName\":\"Royal Academy of Music\",\"otherEntity\":\"" + ukId +
+                "\",\"detail\":\"[DK] Royal Academy of Music\"}\n");
+
+        stage.destroy();
+    }
+
+    @Test
+    public void clashReportFinishedOnFailure() throws Exception {
+        // two entities from the same protected authority sharing a name cause the stage to fail
+        final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-uk.xml" });
+
+        final List<String> flushes = new ArrayList<>();
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.setWriter(new StringWriter() {
+            @Override
+            public void flush() {
+                flushes.add("flush");
+            }
+        });
+        report.initialize();
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.setClashReport(report);
+        stage.initialize();
+        try {
+            stage.execute(items);
+            Assert.fail("expected the stage to fail");
+        } catch (final StageProcessingException e) {
+            // expected
+        }
+        Assert.assertEquals(flushes, List.of("flush"));
+
+        stage.destroy();
+    }
+
+    private List<String> reportLines(final List<Item<Element>> items, final ExecutorService executor)
+            throws Exception {
+        final StringWriter writer = new StringWriter();
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.setWriter(writer);
+        report.initialize();
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.setIdentificationStrategy(new UKItemIdentificationStrategy<>());
+        stage.setClashReport(report);
+        stage.setExecutorService(executor);
+        stage.setChunkSize(101);
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+
+        // records from parallel tasks are written in no particular order
+        final List<String> lines = new ArrayList<>(List.of(writer.toString().split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void parallelClashReport() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(20);
+        generator.setEntityCount(4000);
+        generator.setIdentityProviderRate(0.8);
+        generator.setForeignRate(0.5);
+        generator.setDuplicateDisplayNameRate(0.2);
+        generator.setForeignDuplicatesOnly(true);
+
+        final List<String> expected = reportLines(generateDOMItems(generator), null);
+        Assert.assertTrue(expected.size() > 1);
+        Assert.assertEquals(reportLines(generateDOMItems(generator), ForkJoinPool.commonPool()), expected);
+    }
+
 }
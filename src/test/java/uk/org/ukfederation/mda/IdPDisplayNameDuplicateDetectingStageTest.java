@@ -1,5 +1,6 @@
 package uk.org.ukfederation.mda;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,6 +11,7 @@ import org.w3c.dom.Element;
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
 import net.shibboleth.metadata.dom.DOMElementItem;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
@@ -119,6 +121,37 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
     }
 
+    @Test
+    public void duplicateReport() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem dup   = makeItem("dup-mdui");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(dup);
+
+        final StringWriter writer = new StringWriter();
+        final DisplayNameClashReport report = new DisplayNameClashReport();
+        report.setWriter(writer);
+        report.setFormat(DisplayNameClashReport.Format.CSV);
+        report.initialize();
+
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("test");
+        stage.setClashReport(report);
+        stage.initialize();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        Assert.assertEquals(writer.toString(),
+                "action,name,entity,otherName,otherEntity,detail\r\n" +
+                "duplicate,Second Organization,https://idp3.example.org/idp/shibboleth," +
+                "Second Organization,https://idp2.example.org/idp/shibboleth,\r\n");
+    }
+
     @Test
     public void duplicateODN() throws Exception {
         final DOMElementItem item1 = makeItem("sv-and-en-1");
@@ -140,6 +173,33 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
     }
 
+    /**
+     * An <code>mdui:DisplayName</code> outside an <code>mdui:UIInfo</code> element
+     * does not count as a display name for the entity.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void misplacedMDUI() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem other = makeItem("misplaced-mdui");
+        
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(other);
+        
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+        
+        Assert.assertEquals(countErrors(item1), 0, "first item");
+        Assert.assertEquals(countErrors(item2), 0, "second item");
+        Assert.assertEquals(countErrors(other), 0, "misplaced display name");
+    }
+
     /**
      * A duplicated OrganizationDisplayName, if you allow for white space at start and end of names.
      * 
@@ -303,4 +363,92 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(item2), 0, "second item");
     }
 
+    private List<String> describeErrors(final List<Item<Element>> items) {
+        final List<String> results = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            final StringBuilder b = new StringBuilder();
+            for (final ErrorStatus error : item.getItemMetadata().get(ErrorStatus.class)) {
+                b.append(error.getStatusMessage()).append(';');
+            }
+            results.add(b.toString());
+        }
+        return results;
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(13);
+        generator.setEntityCount(4000);
+        generator.setIdentityProviderRate(0.8);
+        generator.setDuplicateDisplayNameRate(0.1);
+
+        final List<String> expected = assertParallelSameAsSequential(() -> generateDOMItems(generator), () -> {
+            final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+            stage.setId("test");
+            stage.setIdentificationStrategy(new UKItemIdentificationStrategy<>());
+            return stage;
+        }, this::describeErrors);
+        Assert.assertTrue(expected.stream().anyMatch(s -> s.contains("duplicate display name")));
+    }
+
+    @Test
+    public void similarNames() throws Exception {
+        final DOMElementItem item1 = makeItem("similar-1");
+        final DOMElementItem item2 = makeItem("similar-2");
+        final DOMElementItem item3 = makeItem("similar-3");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(item3);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("test");
+        stage.setSimilarityThreshold(0.8);
+        stage.initialize();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        Assert.assertEquals(countErrors(item1), 0);
+        Assert.assertEquals(countErrors(item2), 0);
+        final List<WarningStatus> warnings = item2.getItemMetadata().get(WarningStatus.class);
+        Assert.assertEquals(warnings.size(), 1);
+        Assert.assertEquals(warnings.get(0).getStatusMessage(),
+                "display name 'Example University' is similar to 'The University of Example' used by " +
+                "https://idp6.example.org/idp/shibboleth (similarity 1.00)");
+        Assert.assertEquals(item1.getItemMetadata().get(WarningStatus.class).size(), 1);
+        Assert.assertEquals(item3.getItemMetadata().get(WarningStatus.class).size(), 0);
+    }
+
+    private List<String> describeWarnings(final List<Item<Element>> items) {
+        final List<String> results = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            final StringBuilder b = new StringBuilder();
+            for (final WarningStatus warning : item.getItemMetadata().get(WarningStatus.class)) {
+                b.append(warning.getStatusMessage()).append(';');
+            }
+            results.add(b.toString());
+        }
+        return results;
+    }
+
+    @Test
+    public void similarNamesParallel() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(14);
+        generator.setEntityCount(3000);
+        generator.setIdentityProviderRate(0.8);
+        generator.setDuplicateDisplayNameRate(0.05);
+
+        final List<String> expected = assertParallelSameAsSequential(() -> generateDOMItems(generator), () -> {
+            final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+            stage.setId("test");
+            stage.setSimilarityThreshold(0.75);
+            return stage;
+        }, this::describeWarnings);
+        Assert.assertTrue(expected.stream().anyMatch(s -> !s.isEmpty()));
+    }
+
 }
@@ -0,0 +1,120 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+
+/** Unit tests for the {@link UKEntityMergingOrderingStrategy} class. */
+public class UKEntityMergingOrderingStrategyTest extends BaseDOMTest {
+
+    /** Generated items, in arbitrary order. */
+    private List<Item<Element>> items;
+
+    /** Generated items, in the order established by {@link UKEntityOrderingStrategy}. */
+    private List<Item<Element>> expected;
+
+    /** Constructor sets class under test. */
+    public UKEntityMergingOrderingStrategyTest() {
+        super(UKEntityMergingOrderingStrategy.class);
+    }
+
+    /**
+     * Generate the test items, if that has not already been done.
+     *
+     * @throws Exception if something goes wrong
+     */
+    private void generate() throws Exception {
+        if (items != null) {
+            return;
+        }
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(9);
+        generator.setEntityCount(3000);
+        generator.setForeignRate(0.3);
+        items = new ArrayList<>(generateDOMItems(generator));
+        Collections.shuffle(items, new Random(9));
+        expected = new UKEntityOrderingStrategy().order(items);
+    }
+
+    /**
+     * Split the generated items into a number of ordered sub-aggregates.
+     *
+     * @param count number of sub-aggregates
+     * @return the ordered sub-aggregates
+     * @throws Exception if something goes wrong
+     */
+    private List<List<Item<Element>>> makeRuns(final int count) throws Exception {
+        generate();
+        final List<List<Item<Element>>> runs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            runs.add(new ArrayList<>());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            runs.get(i % count).add(items.get(i));
+        }
+        final UKEntityOrderingStrategy strategy = new UKEntityOrderingStrategy();
+        final List<List<Item<Element>>> ordered = new ArrayList<>();
+        for (final List<Item<Element>> run : runs) {
+            ordered.add(strategy.order(run));
+        }
+        return ordered;
+    }
+
+    private void assertExpected(final List<Item<Element>> actual) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(actual.get(i), expected.get(i), "item " + i);
+        }
+    }
+
+    /**
+     * Test ordering a concatenation of ordered sub-aggregates.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testOrderRuns() throws Exception {
+        final List<Item<Element>> concatenated = new ArrayList<>();
+        for (final List<Item<Element>> run : makeRuns(3)) {
+            concatenated.addAll(run);
+        }
+        assertExpected(new UKEntityMergingOrderingStrategy().order(concatenated));
+    }
+
+    /**
+     * Test merging explicitly supplied ordered sub-aggregates.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testMerge() throws Exception {
+        final List<List<Item<Element>>> runs = makeRuns(5);
+        runs.add(new ArrayList<>());
+        assertExpected(new UKEntityMergingOrderingStrategy().merge(runs));
+    }
+
+    /**
+     * Test that an unordered collection is still ordered correctly.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testUnordered() throws Exception {
+        generate();
+        assertExpected(new UKEntityMergingOrderingStrategy().order(items));
+    }
+
+    /** Test ordering an empty collection. */
+    @Test
+    public void testEmpty() {
+        Assert.assertTrue(new UKEntityMergingOrderingStrategy().order(new ArrayList<>()).isEmpty());
+    }
+
+}
@@ -1,7 +1,9 @@
 package uk.org.ukfederation.mda;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -80,4 +82,98 @@ public class UKEntityOrderingStrategyTest extends BaseDOMTest {
         Assert.assertEquals(items2.get(7), i5);
     }
 
+    /**
+     * Test that items sharing a {@link UKId} are ordered by {@link ItemId}.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testSharedUKId() throws Exception {
+        final Element trivialDoc = readXMLData("trivial.xml");
+
+        final DOMElementItem i0 = new DOMElementItem(trivialDoc);
+        i0.getItemMetadata().put(new UKId("uk000001"));
+
+        final DOMElementItem i1 = new DOMElementItem(trivialDoc);
+        i1.getItemMetadata().put(new UKId("uk000002"));
+        i1.getItemMetadata().put(new ItemId("https://example.com/a"));
+
+        final DOMElementItem i2 = new DOMElementItem(trivialDoc);
+        i2.getItemMetadata().put(new UKId("uk000002"));
+        i2.getItemMetadata().put(new ItemId("https://example.com/b"));
+
+        final DOMElementItem i3 = new DOMElementItem(trivialDoc);
+        i3.getItemMetadata().put(new UKId("uk000003"));
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(i3);
+        items.add(i2);
+        items.add(i0);
+        items.add(i1);
+
+        final List<Item<Element>> items2 = new UKEntityOrderingStrategy().order(items);
+        Assert.assertEquals(items2, List.of(i0, i1, i2, i3));
+    }
+
+    /**
+     * Test that a non-numeric {@link UKId} is ordered among the numeric ones.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testNonNumericUKId() throws Exception {
+        final Element trivialDoc = readXMLData("trivial.xml");
+
+        final DOMElementItem i0 = new DOMElementItem(trivialDoc);
+        i0.getItemMetadata().put(new UKId("uk000001"));
+
+        final DOMElementItem i1 = new DOMElementItem(trivialDoc);
+        i1.getItemMetadata().put(new UKId("uk0000015"));
+
+        final DOMElementItem i2 = new DOMElementItem(trivialDoc);
+        i2.getItemMetadata().put(new UKId("uk000002"));
+
+        final DOMElementItem i3 = new DOMElementItem(trivialDoc);
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(i3);
+        items.add(i2);
+        items.add(i1);
+        items.add(i0);
+
+        final List<Item<Element>> items2 = new UKEntityOrderingStrategy().order(items);
+        Assert.assertEquals(items2, List.of(i0, i1, i2, i3));
+    }
+
+    /**
+     * Test that ordering a large generated aggregate gives the same result as
+     * ordering by comparison alone.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testGenerated() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(8);
+        generator.setEntityCount(5000);
+        generator.setForeignRate(0.2);
+        generator.setDuplicateIdRate(0.01);
+        final List<Item<Element>> items = new ArrayList<>(generateDOMItems(generator));
+        for (int i = 0; i < 50; i++) {
+            // some items share an ID, and are distinguished by their ItemId
+            final Item<Element> item = items.get(i * 11);
+            item.getItemMetadata().removeAll(UKId.class);
+            item.getItemMetadata().put(UKId.valueOf(i % 5));
+            item.getItemMetadata().put(new ItemId("https://example.org/shared/" + (i % 3)));
+        }
+        Collections.shuffle(items, new Random(8));
+
+        final List<Item<Element>> expected = UKEntityOrderingStrategy.orderByComparison(items);
+        final List<Item<Element>> actual = new UKEntityOrderingStrategy().order(items);
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(actual.get(i), expected.get(i), "item " + i);
+        }
+    }
+
 }
@@ -0,0 +1,96 @@
+package uk.org.ukfederation.mda;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class UKIdRegistryTest {
+
+    private UKIdRegistry makeRegistry(final File file, final String date) throws ComponentInitializationException {
+        final UKIdRegistry registry = new UKIdRegistry();
+        registry.setFile(file);
+        registry.setClock(Clock.fixed(Instant.parse(date + "T12:00:00Z"), ZoneOffset.UTC));
+        registry.initialize();
+        return registry;
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        final File file = File.createTempFile("ukids", ".reg");
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+
+        final UKIdRegistry first = makeRegistry(file, "2020-01-01");
+        Assert.assertNull(first.getEntityID(1));
+        Assert.assertNull(first.getFirstSeen(1));
+        Assert.assertNull(first.register(1, "https://one.example.org/"));
+        Assert.assertNull(first.register(999999, "https://last.example.org/\u00e9"));
+        Assert.assertNull(first.register(1, "https://one.example.org/"));
+        Assert.assertEquals(first.register(1, "https://other.example.org/"), "https://one.example.org/");
+        first.destroy();
+
+        // reopen on a later date; history is preserved
+        final UKIdRegistry second = makeRegistry(file, "2021-06-30");
+        Assert.assertEquals(second.getEntityID(1), "https://one.example.org/");
+        Assert.assertEquals(second.getFirstSeen(1), LocalDate.parse("2020-01-01"));
+        Assert.assertEquals(second.getEntityID(999999), "https://last.example.org/\u00e9");
+        Assert.assertEquals(second.register(1, "https://other.example.org/"), "https://one.example.org/");
+        Assert.assertNull(second.register(2, "https://two.example.org/"));
+        Assert.assertEquals(second.getFirstSeen(2), LocalDate.parse("2021-06-30"));
+        second.destroy();
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        final File file = File.createTempFile("ukids", ".reg");
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+
+        final UKIdRegistry first = makeRegistry(file, "2020-01-01");
+        try {
+            makeRegistry(file, "2020-01-01");
+            Assert.fail("second registry on a locked file should not initialize");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+        first.destroy();
+
+        // the lock is released on destroy
+        makeRegistry(file, "2020-01-02").destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNotRegistry() throws Exception {
+        final File file = File.createTempFile("ukids", ".reg");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeBytes("not a registry");
+            raf.setLength(UKId.ID_SPACE * 32L);
+        }
+        makeRegistry(file, "2020-01-01");
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testTruncated() throws Exception {
+        final File file = File.createTempFile("ukids", ".reg");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeBytes("too short");
+        }
+        makeRegistry(file, "2020-01-01");
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoFile() throws Exception {
+        new UKIdRegistry().initialize();
+    }
+
+}
@@ -56,4 +56,82 @@ public class UKIdTest {
         Assert.assertFalse(one.hashCode() == two.hashCode());
     }
 
+    /** Test decoding of identifiers of the usual form. */
+    @Test
+    public void testParseNumber() {
+        Assert.assertEquals(UKId.parseNumber("uk000000"), 0);
+        Assert.assertEquals(UKId.parseNumber("uk001234"), 1234);
+        Assert.assertEquals(UKId.parseNumber("uk999999"), 999999);
+
+        Assert.assertEquals(UKId.parseNumber(null), -1);
+        Assert.assertEquals(UKId.parseNumber(""), -1);
+        Assert.assertEquals(UKId.parseNumber("uk12345"), -1);
+        Assert.assertEquals(UKId.parseNumber("uk1234567"), -1);
+        Assert.assertEquals(UKId.parseNumber("UK123456"), -1);
+        Assert.assertEquals(UKId.parseNumber("ux123456"), -1);
+        Assert.assertEquals(UKId.parseNumber("uk12345a"), -1);
+        Assert.assertEquals(UKId.parseNumber("uk12/456"), -1);
+        Assert.assertEquals(UKId.parseNumber("uk12:456"), -1);
+        Assert.assertEquals(UKId.parseNumber("uk12345\n"), -1);
+        // non-ASCII digits
+        Assert.assertEquals(UKId.parseNumber("uk\u0661\u0662\u0663\u0664\u0665\u0666"), -1);
+    }
+
+    /** Test the canonical instances for numeric identifiers. */
+    @Test
+    public void testValueOf() {
+        final UKId one = UKId.valueOf(1234);
+        Assert.assertSame(UKId.valueOf(1234), one);
+        Assert.assertSame(UKId.valueOf("uk001234"), one);
+        Assert.assertSame(UKId.valueOf(" uk001234 "), one);
+        Assert.assertTrue(one.isNumeric());
+        Assert.assertEquals(one.getNumber(), 1234);
+        Assert.assertEquals(one.getId(), "uk001234");
+        Assert.assertEquals(UKId.valueOf(0).getId(), "uk000000");
+        Assert.assertEquals(UKId.valueOf(999999).getId(), "uk999999");
+
+        final UKId other = UKId.valueOf("uk-id");
+        Assert.assertFalse(other.isNumeric());
+        Assert.assertEquals(other.getNumber(), -1);
+        Assert.assertEquals(other.getId(), "uk-id");
+
+        try {
+            UKId.valueOf(-1);
+            Assert.fail();
+        } catch (ConstraintViolationException e) {
+            // expected this
+        }
+
+        try {
+            UKId.valueOf(UKId.ID_SPACE);
+            Assert.fail();
+        } catch (ConstraintViolationException e) {
+            // expected this
+        }
+    }
+
+    /** Test that the numeric and string forms of an identifier behave identically. */
+    @Test
+    public void testNumericCompatibility() {
+        final UKId numeric = UKId.valueOf(42);
+        final UKId constructed = new UKId("uk000042");
+        Assert.assertNotSame(constructed, numeric);
+        Assert.assertEquals(constructed, numeric);
+        Assert.assertEquals(numeric, constructed);
+        Assert.assertEquals(constructed.hashCode(), numeric.hashCode());
+        Assert.assertEquals(constructed.compareTo(numeric), 0);
+        Assert.assertNotEquals(new UKId("uk-42"), numeric);
+
+        // ordering is by string form, whatever the representation
+        final UKId[] ids = {
+            UKId.valueOf(9), new UKId("uk000010"), UKId.valueOf(100000), new UKId("uk1"), new UKId("ul000000"),
+        };
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = 0; j < ids.length; j++) {
+                Assert.assertEquals(Integer.signum(ids[i].compareTo(ids[j])),
+                        Integer.signum(ids[i].getId().compareTo(ids[j].getId())), i + " vs " + j);
+            }
+        }
+    }
+
 }
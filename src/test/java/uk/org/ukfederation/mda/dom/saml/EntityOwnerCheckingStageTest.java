@@ -12,6 +12,7 @@ import org.w3c.dom.Element;
 
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.AggregateGenerator;
 import uk.org.ukfederation.mda.BaseDOMTest;
 import uk.org.ukfederation.members.Members;
 
@@ -110,4 +111,31 @@ public class EntityOwnerCheckingStageTest extends BaseDOMTest {
         checkError(item, "has no orgID attribute");
     }
 
+    private List<String> describe(final List<Item<Element>> items) {
+        final List<String> results = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            final List<ErrorStatus> errors = item.getItemMetadata().get(ErrorStatus.class);
+            results.add(errors.size() + "/" + (errors.isEmpty() ? "" : errors.get(0).getStatusMessage()));
+        }
+        return results;
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setSeed(7);
+        generator.setEntityCount(3000);
+        generator.setForeignRate(0.1);
+        final Members members = new Members(generator.generateMembers());
+
+        final List<String> expected = assertParallelSameAsSequential(generator::generateItems, () -> {
+            final EntityOwnerCheckingStage stage = new EntityOwnerCheckingStage();
+            stage.setId("test");
+            stage.setMembers(members);
+            return stage;
+        }, this::describe);
+        Assert.assertTrue(expected.contains("0/"));
+        Assert.assertTrue(expected.stream().anyMatch(s -> s.startsWith("1/")));
+    }
+
 }
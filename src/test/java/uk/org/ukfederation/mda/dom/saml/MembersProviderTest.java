@@ -0,0 +1,137 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+
+public class MembersProviderTest extends BaseDOMTest {
+
+    private static final String NAME = "Example Organization";
+
+    protected MembersProviderTest() {
+        super(MembersProvider.class);
+    }
+
+    private File makeMembersFile() throws Exception {
+        final File dir = Files.createTempDirectory("members").toFile();
+        dir.deleteOnExit();
+        final File file = new File(dir, "members.xml");
+        file.deleteOnExit();
+        writeMembers(file, "ukforg123");
+        return file;
+    }
+
+    private void writeMembers(final File file, final String id) throws Exception {
+        Files.write(file.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<Members xmlns=\"http://ukfederation.org.uk/2007/01/members\">\n" +
+                "    <Member ID=\"" + id + "\">\n" +
+                "        <Name>" + NAME + "</Name>\n" +
+                "        <JoinDate>2011-01-01</JoinDate>\n" +
+                "    </Member>\n" +
+                "</Members>\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MembersProvider makeProvider(final File file, final boolean watching)
+            throws ComponentInitializationException {
+        final MembersProvider provider = new MembersProvider();
+        provider.setFile(file);
+        provider.setParserPool(getParserPool());
+        provider.setWatching(watching);
+        provider.initialize();
+        return provider;
+    }
+
+    @Test
+    public void reload() throws Exception {
+        final File file = makeMembersFile();
+        final MembersProvider provider = makeProvider(file, false);
+        final MembersSnapshot first = provider.getSnapshot();
+        Assert.assertEquals(first.getMemberByName(NAME).getID(), "ukforg123");
+
+        writeMembers(file, "ukforg456");
+        Assert.assertTrue(provider.reload());
+        final MembersSnapshot second = provider.getSnapshot();
+        Assert.assertNotSame(second, first);
+        Assert.assertEquals(second.getMemberByName(NAME).getID(), "ukforg456");
+
+        // a snapshot already taken does not change
+        Assert.assertEquals(first.getMemberByName(NAME).getID(), "ukforg123");
+        provider.destroy();
+    }
+
+    @Test
+    public void badReload() throws Exception {
+        final File file = makeMembersFile();
+        final MembersProvider provider = makeProvider(file, false);
+        final MembersSnapshot first = provider.getSnapshot();
+
+        Files.write(file.toPath(), "<Members".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(provider.reload());
+        Assert.assertSame(provider.getSnapshot(), first);
+        provider.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void missingFile() throws Exception {
+        makeProvider(new File("does-not-exist/members.xml"), false);
+    }
+
+    @Test
+    public void watching() throws Exception {
+        final File file = makeMembersFile();
+        final MembersProvider provider = makeProvider(file, true);
+        final MembersSnapshot first = provider.getSnapshot();
+
+        writeMembers(file, "ukforg456");
+        final long deadline = System.currentTimeMillis() + 30_000;
+        while (provider.getSnapshot() == first && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(provider.getSnapshot().getMemberByName(NAME).getID(), "ukforg456");
+        provider.destroy();
+
+        // destroying the provider stops its watching thread
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertNotEquals(thread.getName(), "MembersProvider watching " + file.getName());
+        }
+        Assert.assertFalse(provider.reload());
+    }
+
+    @Test
+    public void ownerCheckingStage() throws Exception {
+        final File file = makeMembersFile();
+        final MembersProvider provider = makeProvider(file, false);
+
+        final EntityOwnerCheckingStage stage = new EntityOwnerCheckingStage();
+        stage.setId("test");
+        stage.setMembersProvider(provider);
+        stage.initialize();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("/uk/org/ukfederation/mda/dom/saml/EntityOwnerCheckingStage-ok.xml"));
+        stage.execute(items);
+        Assert.assertEquals(countErrors(items.get(0)), 0);
+
+        // the next execution sees the new members
+        writeMembers(file, "ukforg456");
+        provider.reload();
+        items.clear();
+        items.add(readDOMItem("/uk/org/ukfederation/mda/dom/saml/EntityOwnerCheckingStage-ok.xml"));
+        stage.execute(items);
+        Assert.assertEquals(countErrors(items.get(0)), 1);
+
+        stage.destroy();
+        provider.destroy();
+    }
+
+}
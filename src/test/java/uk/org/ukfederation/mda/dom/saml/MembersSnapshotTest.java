@@ -0,0 +1,68 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import uk.org.ukfederation.mda.AggregateGenerator;
+import uk.org.ukfederation.members.Members;
+import uk.org.ukfederation.members.jaxb.MemberElement;
+
+public class MembersSnapshotTest {
+
+    @Test
+    public void testLookup() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setEntityCount(100);
+        generator.generateItems();
+        final Members members = new Members(generator.generateMembers());
+        final MembersSnapshot snapshot = new MembersSnapshot(members);
+        Assert.assertSame(snapshot.getMembers(), members);
+
+        final String name = AggregateGenerator.organizationName(0);
+        final MemberElement member = snapshot.getMemberByName(name);
+        Assert.assertNotNull(member);
+        Assert.assertSame(member, members.getMemberByName(name));
+
+        // answered from the index the second time
+        Assert.assertSame(snapshot.getMemberByName(name), member);
+
+        Assert.assertNull(snapshot.getMemberByName("No Such Organisation"));
+        Assert.assertNull(snapshot.getMemberByName("No Such Organisation"));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final AggregateGenerator generator = new AggregateGenerator();
+        generator.setEntityCount(400);
+        generator.generateItems();
+        final Members members = new Members(generator.generateMembers());
+        final MembersSnapshot snapshot = new MembersSnapshot(members);
+
+        // lookups which miss the index, from several threads at once
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(executor.submit(() -> {
+                    for (int index = 0; index < 400; index++) {
+                        final String name = AggregateGenerator.organizationName(index);
+                        Assert.assertSame(snapshot.getMemberByName(name), members.getMemberByName(name));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+
+public class SAMLSupportTest {
+
+    private static final QName ORG_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationName");
+
+    private Element makeOrganization(final String... langs) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document doc = factory.newDocumentBuilder().newDocument();
+        final Element org = doc.createElementNS(SAMLMetadataSupport.MD_NS, "md:Organization");
+        doc.appendChild(org);
+        // something else with a suitable language, which should be ignored
+        final Element other = doc.createElementNS(SAMLMetadataSupport.MD_NS, "md:OrganizationURL");
+        other.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", "en");
+        org.appendChild(other);
+        for (int i = 0; i < langs.length; i++) {
+            final Element name = doc.createElementNS(SAMLMetadataSupport.MD_NS, "md:OrganizationName");
+            if (langs[i] != null) {
+                name.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", langs[i]);
+            }
+            name.setTextContent(Integer.toString(i));
+            org.appendChild(name);
+        }
+        return org;
+    }
+
+    private String findEnglish(final String... langs) throws Exception {
+        final Element found = SAMLSupport.findEnglishChild(makeOrganization(langs), ORG_NAME);
+        return found == null ? null : found.getTextContent();
+    }
+
+    @Test
+    public void testFindEnglishChild() throws Exception {
+        Assert.assertEquals(findEnglish("en"), "0");
+        Assert.assertEquals(findEnglish("fr", "en-GB", "en", "en"), "2");
+        Assert.assertEquals(findEnglish("fr", "en-US", "en-GB"), "1");
+        Assert.assertEquals(findEnglish(null, "english", "en-GB"), "2");
+        Assert.assertNull(findEnglish("fr", null, "english"));
+        Assert.assertNull(findEnglish());
+    }
+
+}
@@ -2,10 +2,19 @@
 package uk.org.ukfederation.mda.dom.saml;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import net.shibboleth.metadata.Item;
 import uk.org.ukfederation.mda.BaseDOMTest;
@@ -42,4 +51,67 @@ public class ScopeInjectionStageTest extends BaseDOMTest {
         assertXMLEqual(out, item.unwrap());
     }
 
+    private int countScopes(final Element element) {
+        return element.getElementsByTagNameNS(ShibbolethMetadataSupport.SHIBMD_NS, "Scope").getLength();
+    }
+
+    @Test
+    public void testScopesCopied() throws Exception {
+        final ScopeInjectionStage stage = makeStage();
+        final int before = countScopes(readXMLData("in1.xml"));
+
+        // two entities with the same scopes in one execution
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("in1.xml"));
+        items.add(readDOMItem("in1.xml"));
+        stage.execute(items);
+
+        // and another in a later execution
+        final List<Item<Element>> laterItems = new ArrayList<>();
+        laterItems.add(readDOMItem("in1.xml"));
+        stage.execute(laterItems);
+
+        final Element first = items.get(0).unwrap();
+        Assert.assertTrue(countScopes(first) > before);
+        Assert.assertEquals(countScopes(first), countScopes(readXMLData("out1.xml")));
+        assertXMLEqual(first, items.get(1).unwrap());
+        assertXMLEqual(first, laterItems.get(0).unwrap());
+
+        // each scope is a separate node belonging to its entity's own document
+        final NodeList scopes = first.getElementsByTagNameNS(ShibbolethMetadataSupport.SHIBMD_NS, "Scope");
+        final Set<Node> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < scopes.getLength(); i++) {
+            Assert.assertSame(scopes.item(i).getOwnerDocument(), first.getOwnerDocument());
+            distinct.add(scopes.item(i));
+        }
+        Assert.assertEquals(distinct.size(), scopes.getLength());
+    }
+
+    @Test
+    public void testConcurrentExecutions() throws Exception {
+        final ScopeInjectionStage stage = makeStage();
+        final List<Item<Element>> expectedItems = new ArrayList<>();
+        expectedItems.add(readDOMItem("in1.xml"));
+        makeStage().execute(expectedItems);
+
+        // several executions sharing the stage's cache of scope list descriptions
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Element>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final Item<Element> item = readDOMItem("in1.xml");
+                results.add(executor.submit(() -> {
+                    stage.execute(new ArrayList<>(List.of(item)));
+                    return item.unwrap();
+                }));
+            }
+            for (final Future<Element> result : results) {
+                assertXMLEqual(expectedItems.get(0).unwrap(), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        stage.destroy();
+    }
+
 }
@@ -0,0 +1,108 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class InstrumentedStageTest {
+
+    /**
+     * Stage which marks the first item with an error, the second with an
+     * informational status, and removes the last item.
+     */
+    private static class MarkingStage extends AbstractStage<String> {
+
+        @Override
+        protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+            items.get(0).getItemMetadata().put(new ErrorStatus(getId(), "first"));
+            items.get(1).getItemMetadata().put(new InfoStatus(getId(), "second"));
+            items.remove(items.size() - 1);
+        }
+    }
+
+    private static class CollectingListener implements StageMetricsListener {
+
+        final List<StageMetrics> collected = new ArrayList<>();
+
+        @Override
+        public void stageExecuted(final StageMetrics metrics) {
+            collected.add(metrics);
+        }
+    }
+
+    private MarkingStage makeWrapped() throws ComponentInitializationException {
+        final MarkingStage stage = new MarkingStage();
+        stage.setId("marking");
+        stage.initialize();
+        return stage;
+    }
+
+    private List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(new MockItem("one"));
+        items.add(new MockItem("two"));
+        items.add(new MockItem("three"));
+        // a status which is already present should not be counted
+        items.get(2).getItemMetadata().put(new ErrorStatus("earlier", "already there"));
+        return items;
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final CollectingListener listener = new CollectingListener();
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(makeWrapped());
+        stage.setListeners(List.of(listener, listener));
+        stage.initialize();
+
+        final List<Item<String>> items = makeItems();
+        stage.execute(items);
+        Assert.assertEquals(items.size(), 2);
+
+        Assert.assertEquals(listener.collected.size(), 2);
+        final StageMetrics metrics = listener.collected.get(0);
+        Assert.assertSame(listener.collected.get(1), metrics);
+        Assert.assertEquals(metrics.getStageId(), "marking");
+        Assert.assertEquals(metrics.getItemsIn(), 3);
+        Assert.assertEquals(metrics.getItemsOut(), 2);
+        // one error added, one removed along with the last item
+        Assert.assertEquals(metrics.getErrorsAdded(), 0);
+        Assert.assertEquals(metrics.getWarningsAdded(), 0);
+        Assert.assertEquals(metrics.getInfosAdded(), 1);
+        Assert.assertTrue(metrics.getWallTime() >= 0);
+        Assert.assertTrue(metrics.getCpuTime() >= -1);
+        Assert.assertTrue(metrics.getAllocatedBytes() >= -1);
+    }
+
+    @Test
+    public void testNoListeners() throws Exception {
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(makeWrapped());
+        stage.initialize();
+
+        final List<Item<String>> items = makeItems();
+        stage.execute(items);
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(items.get(0).getItemMetadata().get(ErrorStatus.class).size(), 1);
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoStage() throws Exception {
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.initialize();
+    }
+
+}
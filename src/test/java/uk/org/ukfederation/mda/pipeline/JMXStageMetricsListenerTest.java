@@ -0,0 +1,61 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class JMXStageMetricsListenerTest {
+
+    @Test
+    public void testRegistration() throws Exception {
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final JMXStageMetricsListener listener = new JMXStageMetricsListener();
+        listener.setMBeanServer(server);
+        listener.setDomain("test");
+        listener.initialize();
+
+        listener.stageExecuted(new StageMetrics("stage/one", 100, 50, 1000, 10, 9, 1, 2, 3));
+        listener.stageExecuted(new StageMetrics("stage/one", 300, -1, 2000, 9, 9, 0, 0, 0));
+        listener.stageExecuted(new StageMetrics("two", 5, 5, 5, 1, 1, 0, 0, 0));
+
+        final ObjectName name = new ObjectName("test:type=Stage,name=" + ObjectName.quote("stage/one"));
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(server.getAttribute(name, "Executions"), 2L);
+        Assert.assertEquals(server.getAttribute(name, "TotalWallTime"), 400L);
+        Assert.assertEquals(server.getAttribute(name, "MaxWallTime"), 300L);
+        Assert.assertEquals(server.getAttribute(name, "TotalCpuTime"), 50L);
+        Assert.assertEquals(server.getAttribute(name, "LastCpuTime"), -1L);
+        Assert.assertEquals(server.getAttribute(name, "TotalAllocatedBytes"), 3000L);
+        Assert.assertEquals(server.getAttribute(name, "LastItemsIn"), 9);
+
+        final StageMetricsMXBean bean = listener.getStageMetrics("stage/one");
+        Assert.assertNotNull(bean);
+        bean.reset();
+        Assert.assertEquals(bean.getExecutions(), 0L);
+        Assert.assertNull(listener.getStageMetrics("three"));
+
+        listener.destroy();
+        Assert.assertFalse(server.isRegistered(name));
+        Assert.assertEquals(server.queryNames(new ObjectName("test:*"), null).size(), 0);
+    }
+
+    @Test
+    public void testAfterDestroy() throws Exception {
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final JMXStageMetricsListener listener = new JMXStageMetricsListener();
+        listener.setMBeanServer(server);
+        listener.setDomain("test");
+        listener.initialize();
+        listener.stageExecuted(new StageMetrics("one", 5, 5, 5, 1, 1, 0, 0, 0));
+        listener.destroy();
+
+        // late metrics are ignored and register nothing
+        listener.stageExecuted(new StageMetrics("one", 5, 5, 5, 1, 1, 0, 0, 0));
+        listener.stageExecuted(new StageMetrics("two", 5, 5, 5, 1, 1, 0, 0, 0));
+        Assert.assertEquals(server.queryNames(new ObjectName("test:*"), null).size(), 0);
+    }
+
+}
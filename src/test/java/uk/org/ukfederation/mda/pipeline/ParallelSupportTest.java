@@ -0,0 +1,69 @@
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+
+public class ParallelSupportTest {
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    private void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    private void tearDown() {
+        executor.shutdown();
+    }
+
+    private void checkEveryIndexOnce(final ExecutorService exec, final int count, final int chunkSize)
+            throws StageProcessingException {
+        final AtomicIntegerArray seen = new AtomicIntegerArray(count);
+        ParallelSupport.forEachIndex(exec, count, chunkSize, seen::incrementAndGet);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(seen.get(i), 1, "index " + i);
+        }
+    }
+
+    @Test
+    public void testCoverage() throws Exception {
+        checkEveryIndexOnce(null, 1000, 10);
+        checkEveryIndexOnce(executor, 0, 10);
+        checkEveryIndexOnce(executor, 5, 10);
+        checkEveryIndexOnce(executor, 1000, 10);
+        checkEveryIndexOnce(executor, 1001, 10);
+    }
+
+    @Test
+    public void testStageProcessingException() {
+        try {
+            ParallelSupport.forEachIndex(executor, 100, 10, index -> {
+                if (index == 57) {
+                    throw new StageProcessingException("index 57");
+                }
+            });
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "index 57");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRuntimeException() throws Exception {
+        ParallelSupport.forEachIndex(executor, 100, 10, index -> {
+            if (index == 3) {
+                throw new IllegalStateException("index 3");
+            }
+        });
+    }
+
+}